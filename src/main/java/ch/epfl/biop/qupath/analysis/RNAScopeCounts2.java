@@ -5,6 +5,7 @@ import ij.plugin.filter.MaximumFinder;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
 import org.bytedeco.opencv.opencv_core.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +18,7 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.*;
-import qupath.lib.objects.classes.PathClass;
-import qupath.lib.objects.classes.PathClassTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.AbstractInteractivePlugin;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
@@ -32,10 +32,20 @@ import qupath.opencv.tools.OpenCVTools;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.stream.Collectors;
 
 import static org.bytedeco.opencv.global.opencv_core.subtract;
@@ -61,116 +71,277 @@ public class RNAScopeCounts2 extends AbstractInteractivePlugin<BufferedImage> {
 
     private static int radius = 3; //px
 
-    // Get percentiles
-    static double[] percentiles( Mat mat, double... percentiles ) {
-        double[] result = new double[ percentiles.length ];
-        if ( result.length == 0 )
-            return result;
-        int n = (int) mat.total( );
-        var mat2 = mat.reshape( 1, n );
-        var matSorted = new Mat( );
-        opencv_core.sort( mat2, matSorted, opencv_core.CV_SORT_ASCENDING + opencv_core.CV_SORT_EVERY_COLUMN );
-        try ( var idx = matSorted.createIndexer( ) ) {
-            for ( int i = 0; i < result.length; i++ ) {
-                long ind = (long) ( percentiles[ i ] / 100.0 * n );
-                result[ i ] = idx.getDouble( ind );
-            }
+    // Cells are grouped by tiles of this size, in pixels, and the cells of a tile are read at once
+    private static int TILE_SIZE = 2048;
+
+    // Sigma of the background subtraction
+    private static double BACKGROUND_SIGMA = 25.0;
+
+    // Size of the tiles read to compute the normalization bounds, in pixels at the requested downsample
+    private static int NORMALIZATION_TILE_SIZE = 1024;
+
+    // Bins of the histogram used to estimate the normalization bounds
+    private static int NORMALIZATION_BINS = 1 << 16;
+
+    // Channel servers are costly to build and each one starts with a cold tile cache, so they are shared between runs,
+    // per ImageData and channel. The values never reference their key, see getChannelServer, so that a closed ImageData
+    // and its hierarchy can be collected along with its entry
+    private static final Map<ImageData<BufferedImage>, Map<String, ChannelServer>> channelServers = new WeakHashMap<>( );
+
+    // A channel server and what it was built from
+    private static class ChannelServer {
+        private final ImageServer<BufferedImage> imageServer;
+        private final String stains;
+        private final ImageServer<BufferedImage> server;
+
+        private ChannelServer( ImageServer<BufferedImage> imageServer, String stains, ImageServer<BufferedImage> server ) {
+            this.imageServer = imageServer;
+            this.stains = stains;
+            this.server = server;
         }
-        matSorted.release( );
-        return result;
     }
 
     /**
-     * Initial version of subcellular detection processing.
+     * Gets the server of a display channel, e.g. a color deconvolved stain. Servers are built once per ImageData and
+     * channel, and rebuilt if the image server or the stains change.
+     * <p>
+     * Display channels reference the ImageData they are built from, so the server is built from a copy of the
+     * ImageData which only shares its image server and stains: the cache does not keep closed images alive.
      *
-     * @param pathObject
-     * @param params
-     * @param imageData
-     * @param minMax
-     * @return
-     * @throws InterruptedException
-     * @throws IOException
+     * @param imageData the image data
+     * @param channel the name of the channel, or part of it
+     * @return a server of this channel only
      */
-    static boolean processObject( final PathObject pathObject, final ParameterList params, ImageData<BufferedImage> imageData, double[] minMax ) throws InterruptedException, IOException {
-
-        // Get the base classification for the object as it currently stands
-        PathClass baseClass = PathClassTools.getNonIntensityAncestorClass( pathObject.getPathClass( ) );
-
-        // We assume that after this processing, any previous sub-cellular objects should be removed
-        pathObject.clearPathObjects( );
-
-        // Ensure we have no existing RNAScope detection measurements - if we do, remove them
-        String[] existingMeasurements = pathObject.getMeasurementList( ).getMeasurementNames( ).stream( ).filter( n -> n.startsWith( "RNAScope:" ) ).toArray( n -> new String[ n ] );
-        if ( existingMeasurements.length > 0 ) {
-            pathObject.getMeasurementList( ).removeMeasurements( existingMeasurements );
-            pathObject.getMeasurementList( ).close( );
+    static ImageServer<BufferedImage> getChannelServer( ImageData<BufferedImage> imageData, String channel ) {
+        ImageServer<BufferedImage> imageServer = imageData.getServer( );
+        ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains( );
+        String stainsString = stains == null ? "" : ColorDeconvolutionStains.getColorDeconvolutionStainsAsString( stains, 5 );
+        synchronized ( channelServers ) {
+            Map<String, ChannelServer> servers = channelServers.computeIfAbsent( imageData, key -> new HashMap<>( ) );
+            ChannelServer cached = servers.get( channel );
+            if ( cached != null && cached.imageServer == imageServer && cached.stains.equals( stainsString ) )
+                return cached.server;
+
+            ImageData<BufferedImage> channelImageData = new ImageData<>( imageServer, new PathObjectHierarchy( ), imageData.getImageType( ) );
+            if ( stains != null ) channelImageData.setColorDeconvolutionStains( stains );
+            ImageServer<BufferedImage> server = createChannelServer( channelImageData, channel );
+            // Replaces the server of previous stains
+            servers.put( channel, new ChannelServer( imageServer, stainsString, server ) );
+            return server;
         }
+    }
 
-        ROI pathROI = pathObject.getROI( );
-        if ( pathROI == null || pathROI.isEmpty( ) )
-            return false;
+    /**
+     * Builds the server of a display channel, e.g. a color deconvolved stain
+     *
+     * @param imageData the image data
+     * @param channel the name of the channel, or part of it
+     * @return a server of this channel only
+     */
+    static ImageServer<BufferedImage> createChannelServer( ImageData<BufferedImage> imageData, String channel ) {
+        List<ChannelDisplayInfo> allChannels = new ImageDisplay( imageData ).availableChannels( );
+        List<ChannelDisplayInfo> rnaScopeChannel = allChannels.stream( ).filter( c -> c.getName( ).contains( channel ) ).limit( 1 ).collect( Collectors.toList( ) );
 
-        ROI cell_roi = pathObject.getROI( );
+        logger.info( "All Available Channels: {}", allChannels);
+        logger.info( "Channel to process {}, channel {}", channel, rnaScopeChannel );
 
-        ROI nucleus_roi = pathObject instanceof PathCellObject ? ( (PathCellObject) pathObject ).getNucleusROI( ) : null;
+        return ChannelDisplayTransformServer.createColorTransformServer( imageData.getServer( ), rnaScopeChannel );
+    }
 
-        // Get the region
-        // Check if we need to invert the image or not
-        String detection_type = (String) params.getChoiceParameterValue( "detection_type" );
-        String channel = (String) params.getChoiceParameterValue( "channel_to_process" );
-        double threshold = params.getDoubleParameterValue( "threshold" ); // Remove this somehow
+    /**
+     * Computes percentiles of the processed channel over the bounding box of a ROI, tile by tile, as they are used to
+     * normalize the image: inverted if looking for dark spots, then square rooted.
+     * Only one tile and a histogram are held in memory, see {@link StreamingQuantiles} for the accuracy.
+     *
+     * @param server the server of the channel to process
+     * @param roi the ROI whose bounding box is measured
+     * @param downsample the downsample at which to read the pixels
+     * @param invert whether the image is inverted, to detect dark spots
+     * @param percentiles the percentiles to compute, between 0 and 100
+     * @return the values of the percentiles
+     * @throws IOException if a tile could not be read
+     */
+    static double[] percentiles( ImageServer<BufferedImage> server, ROI roi, double downsample, boolean invert, double... percentiles ) throws IOException {
+        StreamingQuantiles quantiles = new StreamingQuantiles( NORMALIZATION_BINS );
+        RegionRequest bounds = RegionRequest.createInstance( server.getPath( ), downsample, roi );
+        int tileSize = (int) Math.round( NORMALIZATION_TILE_SIZE * downsample );
+        double[] values = null;
+        for ( int y = bounds.getY( ); y < bounds.getY( ) + bounds.getHeight( ); y += tileSize ) {
+            for ( int x = bounds.getX( ); x < bounds.getX( ) + bounds.getWidth( ); x += tileSize ) {
+                int w = Math.min( tileSize, bounds.getX( ) + bounds.getWidth( ) - x );
+                int h = Math.min( tileSize, bounds.getY( ) + bounds.getHeight( ) - y );
+                BufferedImage img = server.readBufferedImage( RegionRequest.createInstance( server.getPath( ), downsample, x, y, w, h, bounds.getZ( ), bounds.getT( ) ) );
+                if ( img == null ) continue;
+
+                // Same operations as on the whole image, pixel by pixel
+                Mat raw = OpenCVTools.imageToMat( img );
+                if ( invert ) opencv_core.bitwise_not( raw, raw );
+                Mat sqrt = ImageOps.Core.sqrt( ).apply( raw );
+
+                int n = (int) sqrt.total( );
+                if ( values == null || values.length < n ) values = new double[ n ];
+                Mat column = sqrt.reshape( 1, n );
+                try ( var idx = column.createIndexer( ) ) {
+                    for ( int i = 0; i < n; i++ )
+                        values[ i ] = idx.getDouble( i );
+                }
+                quantiles.add( values, n );
+                sqrt.release( );
+                raw.release( );
+            }
+        }
+        logger.debug( "    Percentiles estimated from {} pixels, error at most {}", quantiles.getCount( ), quantiles.getMaxError( ) );
+        return quantiles.getPercentiles( percentiles );
+    }
 
-        int downsample = 1;
+    /**
+     * Groups cells by tile, so that each tile is read and filtered once for all its cells
+     *
+     * @param cells the cells to process
+     * @return lists of cells whose centroid falls in the same tile of the same plane
+     */
+    static Collection<List<PathObject>> groupByTile( List<PathObject> cells ) {
+        // Keyed by plane and tile indices, a group is read from the plane of its cells
+        Map<List<Long>, List<PathObject>> tiles = new LinkedHashMap<>( );
+        for ( PathObject cell : cells ) {
+            ROI roi = cell.getROI( );
+            if ( roi == null ) continue;
+            long tileX = (long) Math.floor( roi.getCentroidX( ) / TILE_SIZE );
+            long tileY = (long) Math.floor( roi.getCentroidY( ) / TILE_SIZE );
+            List<Long> key = Arrays.asList( (long) roi.getZ( ), (long) roi.getT( ), tileX, tileY );
+            tiles.computeIfAbsent( key, k -> new ArrayList<>( ) ).add( cell );
+        }
+        return tiles.values( );
+    }
 
-        List<ChannelDisplayInfo> allChannels = new ImageDisplay( imageData ).availableChannels( );
+    /**
+     * Spots detected in a cell, computed in parallel and applied to the cell afterwards
+     */
+    static class CellSpots {
+        final PathObject cell;
+        // null if the cell has no ROI to process
+        final List<PathObject> spots;
+        final int nucleusCounts;
+
+        CellSpots( PathObject cell, List<PathObject> spots, int nucleusCounts ) {
+            this.cell = cell;
+            this.spots = spots;
+            this.nucleusCounts = nucleusCounts;
+        }
+    }
 
-        List<ChannelDisplayInfo> rnaScopeChannel = allChannels.stream( ).filter( c -> c.getName( ).contains( channel ) ).limit( 1 ).collect( Collectors.toList( ) );
+    /**
+     * Detects the spots of a group of cells, see {@link #groupByTile(List)}. Cells are not modified, so that groups can
+     * be processed in parallel, see {@link #applySpots(Collection, String)}.
+     * <p>
+     * Each cell is filtered and searched for maxima on its own bounding box, as when every cell was read separately, so
+     * the counts do not depend on the grouping. The pixels of the group are read at once when the region covering all
+     * the cells is not larger than their bounding boxes added up, which is the case for neighbouring cells, and each
+     * cell is then cropped from it. Otherwise, e.g. for a few scattered cells, each cell is read on its own.
+     *
+     * @param cells the cells to process, which are close to each other and on the same plane
+     * @param params the parameters of the plugin
+     * @param server the server of the channel to process
+     * @param minMax the normalization bounds, see {@link #percentiles(ImageServer, ROI, double, boolean, double...)}
+     * @return the spots of each cell
+     * @throws IOException if the pixels could not be read
+     */
+    static List<CellSpots> detectSpots( final List<PathObject> cells, final ParameterList params, ImageServer<BufferedImage> server, double[] minMax ) throws IOException {
 
-        ImageServer<BufferedImage> server = ChannelDisplayTransformServer.createColorTransformServer(imageData.getServer( ), rnaScopeChannel);
+        List<CellSpots> results = new ArrayList<>( );
+        List<PathObject> validCells = new ArrayList<>( );
+        List<RegionRequest> requests = new ArrayList<>( );
+        int downsample = 1;
+        for ( PathObject pathObject : cells ) {
+            ROI pathROI = pathObject.getROI( );
+            if ( pathROI != null && !pathROI.isEmpty( ) ) {
+                validCells.add( pathObject );
+                requests.add( RegionRequest.createInstance( server.getPath( ), downsample, pathROI ) );
+            } else
+                results.add( new CellSpots( pathObject, null, 0 ) );
+        }
+        if ( validCells.isEmpty( ) )
+            return results;
+
+        // Region covering the bounding boxes of all cells
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        long cellsArea = 0;
+        for ( RegionRequest request : requests ) {
+            x0 = Math.min( x0, request.getX( ) );
+            y0 = Math.min( y0, request.getY( ) );
+            x1 = Math.max( x1, request.getX( ) + request.getWidth( ) );
+            y1 = Math.max( y1, request.getY( ) + request.getHeight( ) );
+            cellsArea += (long) request.getWidth( ) * request.getHeight( );
+        }
 
-        RegionRequest cell_request = RegionRequest.createInstance( server.getPath( ), downsample, pathObject.getROI( ) );
+        Mat tile = null;
+        if ( validCells.size( ) > 1 && (long) ( x1 - x0 ) * ( y1 - y0 ) <= cellsArea ) {
+            RegionRequest first = requests.get( 0 );
+            RegionRequest tileRequest = RegionRequest.createInstance( server.getPath( ), downsample, x0, y0, x1 - x0, y1 - y0, first.getZ( ), first.getT( ) );
+            BufferedImage img = server.readBufferedImage( tileRequest );
+            // Cropping relies on one pixel per image pixel, else cells are read on their own
+            if ( img.getWidth( ) == x1 - x0 && img.getHeight( ) == y1 - y0 )
+                tile = OpenCVTools.imageToMat( img );
+        }
 
-        BufferedImage img = null;
         try {
-            img = server.readBufferedImage( cell_request );
-        } catch ( IOException e ) {
-            e.printStackTrace( );
+            for ( int i = 0; i < validCells.size( ); i++ ) {
+                RegionRequest request = requests.get( i );
+                Mat mat_raw;
+                double scaleX = 1, scaleY = 1;
+                if ( tile != null ) {
+                    // Copied, as the pipeline works in place
+                    mat_raw = new Mat( tile, new Rect( request.getX( ) - x0, request.getY( ) - y0, request.getWidth( ), request.getHeight( ) ) ).clone( );
+                } else {
+                    BufferedImage img = server.readBufferedImage( request );
+                    scaleX = request.getWidth( ) / (double) img.getWidth( );
+                    scaleY = request.getHeight( ) / (double) img.getHeight( );
+                    mat_raw = OpenCVTools.imageToMat( img );
+                }
+                results.add( detectCellSpots( validCells.get( i ), mat_raw, request.getX( ), request.getY( ), scaleX, scaleY, params, minMax ) );
+            }
+        } finally {
+            if ( tile != null ) tile.release( );
         }
+        return results;
+    }
 
+    /**
+     * Detects the spots of a cell in the pixels of its bounding box: normalization, background subtraction, difference
+     * of Gaussians and maxima search, then assignment of the maxima to the cell and its nucleus
+     *
+     * @param pathObject the cell
+     * @param mat_raw the pixels of the bounding box of the cell, released by this method
+     * @param x the left of the bounding box in the image
+     * @param y the top of the bounding box in the image
+     * @param scaleX the width of a pixel of mat_raw in image pixels
+     * @param scaleY the height of a pixel of mat_raw in image pixels
+     * @param params the parameters of the plugin
+     * @param minMax the normalization bounds
+     * @return the spots of the cell
+     */
+    static CellSpots detectCellSpots( PathObject pathObject, Mat mat_raw, double x, double y, double scaleX, double scaleY, final ParameterList params, double[] minMax ) {
 
-        // Get the top left corner for later adjustments
-        double x = cell_request.getX( );
-        double y = cell_request.getY( );
-        double scaleX = cell_request.getWidth( ) / (double) img.getWidth( );
-        double scaleY = cell_request.getHeight( ) / (double) img.getHeight( );
+        // Check if we need to invert the image or not
+        String detection_type = (String) params.getChoiceParameterValue( "detection_type" );
+        double threshold = params.getDoubleParameterValue( "threshold" ); // Remove this somehow
 
-        // Convert to OpenCV Mat
-        int width = img.getWidth( );
-        int height = img.getHeight( );
-        Mat mat_raw = OpenCVTools.imageToMat( img );
+        Mat mat_input = mat_raw;
 
         // Invert if looking for dark objects
         if ( detection_type.equals( DARK_DETECTIONS ) ) opencv_core.bitwise_not( mat_raw, mat_raw );
 
-        // Remove noise
-        //mat_raw = ImageOps.Filters.median( 1 ).apply( mat_raw );
-        //mat_raw = blur( mat_raw, 1.0);
-
         // SQRT to kill contribution of overly bright spots
         mat_raw = ImageOps.Core.sqrt( ).apply( mat_raw );
 
-        // Normalize input image
-        // This is not a minMax normalization as I understand it.
-        // This method takes the min and max values of the image to put them as the entered range
-        //mat = ImageOps.Normalize.minMax( minMax[ 0 ], minMax[ 1 ] ).apply( mat );
-
         // Apply Normalization newval = ( oldval - min ) / (max-min)
         Mat mat_norm = ImageOps.Core.subtract( minMax[ 0 ] ).apply( mat_raw );
         mat_norm = ImageOps.Core.divide( minMax[ 1 ] - minMax[ 0 ] ).apply( mat_norm );
 
         // Perform a background subtraction. We expect sub-diffracted spots, so remove large variations (~15px)
-        Mat bg = blur( mat_norm, 25.0 );
+        Mat bg = blur( mat_norm, BACKGROUND_SIGMA );
         subtract( mat_norm, bg, mat_norm );
+        bg.release( );
 
         // DoG computation for small spots
         double gaussian_sigma1 = 2.0;
@@ -189,145 +360,110 @@ public class RNAScopeCounts2 extends AbstractInteractivePlugin<BufferedImage> {
         ImagePlus peaks = OpenCVTools.matToImagePlus( "Peaks", mat_dog );
         Polygon maxima = mf.getMaxima( peaks.getProcessor( ), prominence, true );
 
+        // Release matrices
+        mat_dog.release( );
+        mat_norm.release( );
+        mat_raw.release( );
+        mat_input.release( );
+        mat_blur1.release( );
+        mat_blur2.release( );
+
         // Now assign each point to the cell and to the nucleus
-        ArrayList<qupath.lib.geom.Point2> points = new ArrayList<>( );
+        ROI cell_roi = pathObject.getROI( );
+        ROI nucleus_roi = pathObject instanceof PathCellObject ? ( (PathCellObject) pathObject ).getNucleusROI( ) : null;
 
-        ROI area_cell = cell_roi != null && cell_roi.isArea( ) ? cell_roi : null;
+        ROI area_cell = cell_roi.isArea( ) ? cell_roi : null;
         ROI area_nucleus = nucleus_roi != null && nucleus_roi.isArea( ) ? nucleus_roi : null;
 
-
         List<PathObject> rnaScopeObjects = new ArrayList<>( );
         int nucleus_counts = 0;
 
         for ( int c = 0; c < maxima.npoints; c++ ) {
-            ROI tempROI = null;
-            Point2 p = new Point2( ( maxima.xpoints[c] + 0.5 ) * scaleX + x, ( maxima.ypoints[c] + 0.5 ) * scaleY + y );
+            Point2 p = new Point2( ( maxima.xpoints[ c ] + 0.5 ) * scaleX + x, ( maxima.ypoints[ c ] + 0.5 ) * scaleY + y );
 
             // Check we're inside
             if ( area_cell != null && !area_cell.contains( p.getX( ), p.getY( ) ) )
                 continue;
 
-            tempROI = ROIs.createEllipseROI( p.getX( ) - radius, p.getY( ) - radius, radius * 2, radius * 2, ImagePlane.getPlane( cell_roi ) );
+            ROI tempROI = ROIs.createEllipseROI( p.getX( ) - radius, p.getY( ) - radius, radius * 2, radius * 2, ImagePlane.getPlane( cell_roi ) );
 
             // Found the path object and now check if it is in the nucleus too
-            if ( tempROI != null ) {
-                if ( area_nucleus != null && !area_nucleus.contains( tempROI.getCentroidX( ), tempROI.getCentroidY( ) ) )
-                    nucleus_counts++;
-            }
+            if ( area_nucleus != null && !area_nucleus.contains( tempROI.getCentroidX( ), tempROI.getCentroidY( ) ) )
+                nucleus_counts++;
 
-            PathObject pathSubObject = PathObjects.createDetectionObject( tempROI );
-           // pathObject.setColorRGB( color );
-
-            rnaScopeObjects.add( pathSubObject );
+            rnaScopeObjects.add( PathObjects.createDetectionObject( tempROI ) );
         }
 
-        /*
-        // Apply Adaptive Threshold
-        Mat matThresh = ImageOps.Core.multiply( 255 ).apply( mat );
-        matThresh.convertTo( matThresh, CV_8UC1 );
-        opencv_imgproc.adaptiveThreshold( matThresh, matThresh, 1, opencv_imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, opencv_imgproc.CV_THRESH_BINARY, 5, threshold );
-
-        // Find local maxima
-        // Apply max filter to help find maxima
-        Mat matMax = new Mat( mat.size( ), mat.type( ) );
-        opencv_imgproc.dilate( mat, matMax, new Mat( ) );
-
-        // Apply potential maxima threshold by locating pixels where mat == matMax,
-        // i.e. a pixel is equal to the maximum of its 8 neighbours
-        // (Note: this doesn’t deal with points of inflection, but with 32-bit this is likely to be rare enough
-        // not to be worth the considerably extra computational cost; may need to confirm there are no rounding errors)
-        Mat matMaxima = new Mat( );
-        compare( mat, matMax, matMaxima, CMP_GE );
-        //OpenCVTools.matToImagePlus( "Maxima", matMaxima).show();
-
-        // Only keep the ones that are above the threshold
-        min( matThresh, matMaxima, matMaxima );
-
-
-        // Create path objects from contours
-        // This deals with the fact that maxima located within matMaxima (a binary image) aren’t necessarily
-        // single pixels, but should be treated as belonging to the same cell
-        MatVector contours = new MatVector( );
-        Mat temp = new Mat( );
-        opencv_imgproc.findContours( matMaxima, contours, temp, opencv_imgproc.RETR_EXTERNAL, opencv_imgproc.CHAIN_APPROX_SIMPLE );
-        temp.release( );
-        ArrayList<qupath.lib.geom.Point2> points = new ArrayList<>( );
-
-        Shape shape_cell = cell_roi != null && cell_roi.isArea( ) ? RoiTools.getShape( cell_roi ) : null;
-        Integer color = ColorTools.makeRGB( 0, 255, 0 );
-
-        ROI area_cell = cell_roi != null && cell_roi.isArea( ) ? cell_roi : null;
-
-        Shape shape_nucleus = nucleus_roi != null && nucleus_roi.isArea( ) ? RoiTools.getShape( nucleus_roi ) : null;
-        ROI area_nucleus = nucleus_roi != null && nucleus_roi.isArea( ) ? nucleus_roi : null;
-
+        return new CellSpots( pathObject, rnaScopeObjects, nucleus_counts );
+    }
 
-        List<PathObject> rnaScopeObjects = new ArrayList<>( );
-        int nucleus_counts = 0;
-        for ( long c = 0; c < contours.size( ); c++ ) {
-            Mat contour = contours.get( c );
-
-            // Create a polygon ROI
-            points.clear( );
-            IntIndexer indexerContour = contour.createIndexer( );
-            for ( int r = 0; r < indexerContour.size( 0 ); r++ ) {
-                int px = indexerContour.get( r, 0L, 0L );
-                int py = indexerContour.get( r, 0L, 1L );
-                points.add( new qupath.lib.geom.Point2( ( px + 0.5 ) * scaleX + x, ( py + 0.5 ) * scaleY + y ) );
+    /**
+     * Replaces the spots and RNAScope measurements of cells. Called from a single thread, once the spots of all the
+     * cells of a parent are detected.
+     *
+     * @param results the spots of each cell, see {@link #detectSpots(List, ParameterList, ImageServer, double[])}
+     * @param channel the processed channel, used in the measurement names
+     */
+    static void applySpots( Collection<CellSpots> results, String channel ) {
+        for ( CellSpots result : results ) {
+            PathObject pathObject = result.cell;
+
+            // We assume that after this processing, any previous sub-cellular objects should be removed
+            pathObject.clearPathObjects( );
+
+            // Ensure we have no existing RNAScope detection measurements - if we do, remove them
+            MeasurementList measurementList = pathObject.getMeasurementList( );
+            String[] existingMeasurements = measurementList.getMeasurementNames( ).stream( ).filter( n -> n.startsWith( "RNAScope:" ) ).toArray( n -> new String[ n ] );
+            if ( existingMeasurements.length > 0 )
+                measurementList.removeMeasurements( existingMeasurements );
+
+            if ( result.spots != null ) {
+                // Add measurements
+                measurementList.putMeasurement( "RNAScope: " + channel + ": Num spots", result.spots.size( ) );
+                measurementList.putMeasurement( "RNAScope: " + channel + ": Nucleus Num spots", result.nucleusCounts );
+                pathObject.addPathObjects( result.spots );
             }
+            measurementList.close( );
+        }
+    }
 
-            // Add new polygon if it is contained within the ROI
-            ROI tempROI = null;
-            if ( points.size( ) == 1 ) {
-                qupath.lib.geom.Point2 p = points.get( 0 );
-                if ( shape_cell != null && !shape_cell.contains( p.getX( ), p.getY( ) ) ) {
-                    continue;
-                }
-
-                // Check we're inside
-                if ( area_cell != null && !area_cell.contains( p.getX( ), p.getY( ) ) )
-                    continue;
-
-                tempROI = ROIs.createEllipseROI( p.getX( ) - radius, p.getY( ) - radius, radius * 2, radius * 2, ImagePlane.getPlane( cell_roi ) );
-            } else {
-                tempROI = ROIs.createPolygonROI( points, ImagePlane.getPlane( pathObject.getROI( ) ) );
-                // Check we're inside
-                if ( area_cell != null && !area_cell.contains( tempROI.getCentroidX( ), tempROI.getCentroidY( ) ) )
-                    continue;
-                tempROI = ROIs.createEllipseROI( tempROI.getCentroidX( ) - radius, tempROI.getCentroidY( ) - radius, radius * 2, radius * 2, ImagePlane.getPlane( cell_roi ) );
-            }
+    /**
+     * Detects the spots of groups of cells in parallel, splitting the groups until single ones are left, so that idle
+     * threads steal the remaining groups. Results are collected in a concurrent queue, cells are not modified.
+     */
+    static class DetectSpotsTask extends RecursiveAction {
+        private final List<List<PathObject>> tiles;
+        private final int from;
+        private final int to;
+        private final ParameterList params;
+        private final ImageServer<BufferedImage> server;
+        private final double[] minMax;
+        private final Queue<CellSpots> results;
+
+        DetectSpotsTask( List<List<PathObject>> tiles, int from, int to, ParameterList params, ImageServer<BufferedImage> server, double[] minMax, Queue<CellSpots> results ) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+            this.params = params;
+            this.server = server;
+            this.minMax = minMax;
+            this.results = results;
+        }
 
-            // Found the path object and now check if it is in the nucleus too
-            if ( tempROI != null ) {
-                if ( area_nucleus != null && !area_nucleus.contains( tempROI.getCentroidX( ), tempROI.getCentroidY( ) ) )
-                    nucleus_counts++;
+        @Override
+        protected void compute( ) {
+            if ( to - from == 1 ) {
+                try {
+                    results.addAll( detectSpots( tiles.get( from ), params, server, minMax ) );
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+                return;
             }
-
-            PathObject pathSubObject = PathObjects.createDetectionObject( tempROI );
-            // Check stain2 value at the peak pixel, if required
-            pathObject.setColorRGB( color );
-
-            contour.release( );
-            rnaScopeObjects.add( pathSubObject );
+            int middle = ( from + to ) / 2;
+            invokeAll( new DetectSpotsTask( tiles, from, middle, params, server, minMax, results ),
+                    new DetectSpotsTask( tiles, middle, to, params, server, minMax, results ) );
         }
-        */
-
-        //logger.info( "Found " + rnaScopeObjects.size( ) + " contours" );
-
-        // Add measurements
-        MeasurementList measurementList = pathObject.getMeasurementList( );
-        measurementList.putMeasurement( "RNAScope: " + channel + ": Num spots", rnaScopeObjects.size( ) );
-        measurementList.putMeasurement( "RNAScope: " + channel + ": Nucleus Num spots", nucleus_counts );
-
-        // Release matrices
-        mat_dog.release( );
-        mat_norm.release();
-        mat_raw.release();
-        mat_blur1.release( );
-        mat_blur2.release( );
-
-        pathObject.addPathObjects( rnaScopeObjects );
-        return true;
     }
 
     private static Mat blur( Mat mat, double sigma ) {
@@ -387,6 +523,10 @@ public class RNAScopeCounts2 extends AbstractInteractivePlugin<BufferedImage> {
 
     @Override
     public boolean runPlugin( final PluginRunner<BufferedImage> pluginRunner, final String arg ) {
+        // Resolved once before the tasks are created, all the parents of the run share it
+        ImageData<BufferedImage> imageData = pluginRunner.getImageData( );
+        if ( imageData != null )
+            getChannelServer( imageData, (String) getParameterList( imageData ).getChoiceParameterValue( "channel_to_process" ) );
         boolean success = super.runPlugin( pluginRunner, arg );
         getHierarchy( pluginRunner ).fireHierarchyChangedEvent( this );
         return success;
@@ -419,7 +559,9 @@ public class RNAScopeCounts2 extends AbstractInteractivePlugin<BufferedImage> {
     @Override
     protected void addRunnableTasks( final ImageData<BufferedImage> imageData, final PathObject parentObject, List<Runnable> tasks ) {
         final ParameterList params = getParameterList( imageData );
-        tasks.add( new ch.epfl.biop.qupath.analysis.RNAScopeCounts2.RNAScopeDetectionRunnable( imageData, parentObject, params ) );
+        // Already built by runPlugin
+        ImageServer<BufferedImage> server = getChannelServer( imageData, (String) params.getChoiceParameterValue( "channel_to_process" ) );
+        tasks.add( new ch.epfl.biop.qupath.analysis.RNAScopeCounts2.RNAScopeDetectionRunnable( imageData, parentObject, params, server ) );
     }
 
     static class RNAScopeDetectionRunnable implements Runnable {
@@ -427,11 +569,13 @@ public class RNAScopeCounts2 extends AbstractInteractivePlugin<BufferedImage> {
         private ImageData<BufferedImage> imageData;
         private ParameterList params;
         private PathObject parentObject;
+        private ImageServer<BufferedImage> server;
 
-        public RNAScopeDetectionRunnable( final ImageData<BufferedImage> imageData, final PathObject parentObject, final ParameterList params ) {
+        public RNAScopeDetectionRunnable( final ImageData<BufferedImage> imageData, final PathObject parentObject, final ParameterList params, final ImageServer<BufferedImage> server ) {
             this.imageData = imageData;
             this.parentObject = parentObject;
             this.params = params;
+            this.server = server;
         }
 
         @Override
@@ -442,59 +586,42 @@ public class RNAScopeCounts2 extends AbstractInteractivePlugin<BufferedImage> {
 
             int downsample = (int) Math.round( Math.max( 1.0, Math.max( imageData.getServer( ).getWidth( ), imageData.getServer( ).getHeight( ) ) / 2048.0 ) );
 
-            List<ChannelDisplayInfo> allChannels = new ImageDisplay( imageData ).availableChannels( );
-
             logger.info( "Extracting Channel {} with downsample {} for normalization before proceeding", channel, downsample );
-            List<ChannelDisplayInfo> rnaScopeChannel = allChannels.stream( ).filter( c -> c.getName( ).contains( channel ) ).limit( 1 ).collect( Collectors.toList( ) );
-
-            logger.info( "All Available Channels: {}", allChannels);
-            logger.info( "Channel to process {}, channel {}", channel, rnaScopeChannel );
-
-            ImageServer<BufferedImage> server = ChannelDisplayTransformServer.createColorTransformServer(imageData.getServer( ), rnaScopeChannel);
-
-            RegionRequest global_request = RegionRequest.createInstance( server.getPath( ), downsample, parentObject.getROI( ) );
-
-            BufferedImage img = null;
 
             try {
-                img = server.readBufferedImage( global_request );
-
-                // Convert to OpenCV Mat
-                Mat raw = OpenCVTools.imageToMat( img );
-
-                // Invert if looking for dark objects
-                if ( detection_type.equals( DARK_DETECTIONS ) ) {
+                boolean invert = detection_type.equals( DARK_DETECTIONS );
+                if ( invert )
                     logger.info( "    Image will be inverted during processing to detect dark spots" );
-                    opencv_core.bitwise_not( raw, raw );
-                }
-
-                // Remove noise
-                //ImageOps.Filters.median( 2 ).apply( raw );
-               // raw = blur( raw, 1.0);
-
-                // SQRT to kill contribution of overly bright spots
-                raw = ImageOps.Core.sqrt( ).apply( raw );
 
-                // Compute quantiles for normalization
-                double[] minmaxVals = percentiles( raw, 5.0, 99.99 );
+                // Compute quantiles for normalization, on the square root of the image to kill contribution of overly bright spots
+                double[] minmaxVals = percentiles( server, parentObject.getROI( ), downsample, invert, 5.0, 99.99 );
                 logger.info( "    Min, Max valued for normalization of channel {}: ({})", channel, minmaxVals );
 
-                // Process all cells in the parent object
+                // Process all cells in the parent object, tile by tile
                 if ( parentObject instanceof PathCellObject )
-                    processObject( parentObject, params, imageData, minmaxVals );
+                    applySpots( detectSpots( Collections.singletonList( parentObject ), params, server, minmaxVals ), channel );
                 else {
                     List<PathObject> cellObjects = PathObjectTools.getFlattenedObjectList( parentObject, null, false ).stream( ).filter( p -> p instanceof PathCellObject ).collect( Collectors.toList( ) );
-                    for ( PathObject cell : cellObjects )
-                        processObject( cell, params, imageData, minmaxVals );
+                    List<List<PathObject>> tiles = new ArrayList<>( groupByTile( cellObjects ) );
+                    logger.info( "    Processing {} cells in {} tiles", cellObjects.size( ), tiles.size( ) );
+                    if ( !tiles.isEmpty( ) ) {
+                        // Tiles are detected in parallel, the cells are then updated from this thread only
+                        Queue<CellSpots> results = new ConcurrentLinkedQueue<>( );
+                        try {
+                            ForkJoinPool.commonPool( ).invoke( new DetectSpotsTask( tiles, 0, tiles.size( ), params, server, minmaxVals, results ) );
+                        } catch ( UncheckedIOException e ) {
+                            throw e.getCause( );
+                        }
+                        applySpots( results, channel );
+                    }
                 }
-            } catch ( InterruptedException e ) {
-                logger.error( "Processing interrupted", e );
             } catch ( IOException e ) {
                 logger.error( "Error processing " + parentObject, e );
             } finally {
                 parentObject.getMeasurementList( ).close( );
                 imageData = null;
                 params = null;
+                server = null;
             }
         }
 
@@ -0,0 +1,134 @@
+package ch.epfl.biop.qupath.analysis;
+
+/**
+ * Quantile estimation over a stream of values, in constant memory
+ * <p>
+ * Values are accumulated into a fixed number of equal width bins. The range of the histogram is set by the first
+ * values and doubles whenever a value falls outside of it, by merging bins two by two, so values can be added tile
+ * by tile without knowing their range in advance. A quantile is located in its bin and interpolated linearly within
+ * it: the error is at most the width of a bin, see {@link #getMaxError()}, which is about twice the range of the
+ * values divided by the number of bins at worst.
+ */
+class StreamingQuantiles {
+
+    private final long[] counts;
+    private double lower = Double.NaN;
+    private double binWidth = Double.NaN;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long n = 0;
+
+    /**
+     * @param nBins number of bins of the histogram, must be even
+     */
+    StreamingQuantiles( int nBins ) {
+        if ( nBins < 2 || nBins % 2 != 0 )
+            throw new IllegalArgumentException( "The number of bins must be even, got " + nBins );
+        counts = new long[ nBins ];
+    }
+
+    /**
+     * Adds values, e.g. the pixels of a tile. Non finite values are ignored.
+     *
+     * @param values the values to add
+     * @param length number of values to read from the start of the array
+     */
+    void add( double[] values, int length ) {
+        double tileMin = Double.POSITIVE_INFINITY;
+        double tileMax = Double.NEGATIVE_INFINITY;
+        for ( int i = 0; i < length; i++ ) {
+            double v = values[ i ];
+            if ( Double.isNaN( v ) || Double.isInfinite( v ) ) continue;
+            if ( v < tileMin ) tileMin = v;
+            if ( v > tileMax ) tileMax = v;
+        }
+        // No finite values
+        if ( tileMin > tileMax ) return;
+        ensureRange( tileMin, tileMax );
+
+        int last = counts.length - 1;
+        for ( int i = 0; i < length; i++ ) {
+            double v = values[ i ];
+            if ( Double.isNaN( v ) || Double.isInfinite( v ) ) continue;
+            int bin = (int) ( ( v - lower ) / binWidth );
+            counts[ bin < 0 ? 0 : ( bin > last ? last : bin ) ]++;
+            n++;
+        }
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated value of the percentile, NaN if no values were added
+     */
+    double getPercentile( double percentile ) {
+        if ( n == 0 ) return Double.NaN;
+        // Same rank as the sorted array lookup this replaces
+        long rank = Math.min( n - 1, (long) ( percentile / 100.0 * n ) );
+        long cumulative = 0;
+        for ( int b = 0; b < counts.length; b++ ) {
+            long count = counts[ b ];
+            if ( cumulative + count > rank ) {
+                double fraction = ( rank - cumulative + 0.5 ) / count;
+                double value = lower + ( b + fraction ) * binWidth;
+                return Math.max( min, Math.min( max, value ) );
+            }
+            cumulative += count;
+        }
+        return max;
+    }
+
+    /**
+     * @param percentiles percentiles, between 0 and 100
+     * @return the estimated values of the percentiles
+     */
+    double[] getPercentiles( double... percentiles ) {
+        double[] result = new double[ percentiles.length ];
+        for ( int i = 0; i < percentiles.length; i++ )
+            result[ i ] = getPercentile( percentiles[ i ] );
+        return result;
+    }
+
+    /**
+     * @return the maximal absolute error of the estimated percentiles, the current bin width
+     */
+    double getMaxError( ) {
+        return binWidth;
+    }
+
+    /**
+     * @return the number of values added
+     */
+    long getCount( ) {
+        return n;
+    }
+
+    // Grows the histogram until it covers [low, high], keeping the counts already binned
+    private void ensureRange( double low, double high ) {
+        min = Math.min( min, low );
+        max = Math.max( max, high );
+        int nBins = counts.length;
+        if ( Double.isNaN( lower ) ) {
+            lower = low;
+            binWidth = high > low ? ( high - low ) / ( nBins - 1 ) : Math.max( Math.ulp( low ), 1.0 / nBins );
+            return;
+        }
+        while ( low < lower || high >= lower + nBins * binWidth ) {
+            int half = nBins / 2;
+            if ( low < lower ) {
+                // Extend to the left: the current bins end up in the upper half
+                for ( int b = nBins - 2; b >= 0; b -= 2 )
+                    counts[ half + b / 2 ] = counts[ b ] + counts[ b + 1 ];
+                for ( int b = 0; b < half; b++ )
+                    counts[ b ] = 0;
+                lower -= nBins * binWidth;
+            } else {
+                // Extend to the right: the current bins end up in the lower half
+                for ( int b = 0; b < nBins; b += 2 )
+                    counts[ b / 2 ] = counts[ b ] + counts[ b + 1 ];
+                for ( int b = half; b < nBins; b++ )
+                    counts[ b ] = 0;
+            }
+            binWidth *= 2;
+        }
+    }
+}
@@ -3,9 +3,12 @@ package ch.epfl.biop.atlas.allen;
 import com.google.gson.Gson;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AllenOntologyJson {
     boolean success;
@@ -50,17 +53,10 @@ public class AllenOntologyJson {
         });
     }
 
-    void fillIdMap(List<AllenBrainRegion> regions) {
-        regions.forEach(region -> {
-            this.idToRegion.put(region.id, region);
-            fillIdMap(region.children);
-        });
-    }
-
     public static AllenOntologyJson getOntologyFromFile(File f) {
         try (Reader fileReader = new BufferedReader(new FileReader(f))){
             AllenOntologyJson ontology = new Gson().fromJson(fileReader, AllenOntologyJson.class);
-            ontology.fillIdMap(ontology.msg);
+            ontology.buildIndex();
             return ontology;
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -70,10 +66,219 @@ public class AllenOntologyJson {
         return null;
     }
 
-    Map<Integer, AllenBrainRegion > idToRegion = new HashMap<>();
+    // Process-wide cache of parsed ontologies, keyed by file, invalidated when the file is modified
+    private static final Map<String, AllenOntologyJson> cachedOntologies = new ConcurrentHashMap<>();
+
+    /**
+     * Same as {@link #getOntologyFromFile(File)}, but the file is only parsed once as long as it is not modified.
+     * The returned ontology is shared, it should not be modified.
+     *
+     * @param f the ontology json file
+     * @return the ontology, or null if it could not be read
+     */
+    public static AllenOntologyJson getCachedOntologyFromFile(File f) {
+        String key;
+        try {
+            key = f.getCanonicalPath() + "@" + f.lastModified();
+        } catch (IOException e) {
+            key = f.getAbsolutePath() + "@" + f.lastModified();
+        }
+        AllenOntologyJson ontology = cachedOntologies.get(key);
+        if (ontology == null) {
+            ontology = getOntologyFromFile(f);
+            if (ontology != null) {
+                // Older versions of this file are not needed anymore
+                String prefix = key.substring(0, key.lastIndexOf('@') + 1);
+                cachedOntologies.keySet().removeIf(k -> k.startsWith(prefix));
+                cachedOntologies.put(key, ontology);
+            }
+        }
+        return ontology;
+    }
+
+    // Regions in depth first order, a region always comes after its parent. This is an Euler tour: the index of a
+    // region is its entry time, subtreeEnds its exit time, and its descendants are exactly the indices in between.
+    transient AllenBrainRegion[] regions;
+    transient int[] subtreeEnds;
+    transient int[] ids;
+    transient int[] parentIndices;
+    transient int[] depths;
+    transient int[][] ancestorIndices;
+    transient Map<String, Integer> acronymToIndex;
+
+    // Open addressing id -> index table, Allen ids are too large to be used as array indices
+    transient int[] idTableKeys;
+    transient int[] idTableValues;
+    transient int idTableMask;
+
+    void buildIndex() {
+        List<AllenBrainRegion> flattened = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        flatten(msg, -1, flattened, parents);
+
+        int n = flattened.size();
+        regions = flattened.toArray(new AllenBrainRegion[0]);
+        ids = new int[n];
+        parentIndices = new int[n];
+        depths = new int[n];
+        ancestorIndices = new int[n][];
+        subtreeEnds = new int[n];
+        acronymToIndex = new HashMap<>(n * 2);
+
+        int capacity = Integer.highestOneBit(Math.max(2, n) * 4);
+        idTableKeys = new int[capacity];
+        idTableValues = new int[capacity];
+        Arrays.fill(idTableValues, -1);
+        idTableMask = capacity - 1;
+
+        for (int i = 0; i < n; i++) {
+            ids[i] = regions[i].id;
+            int parent = parents.get(i);
+            parentIndices[i] = parent;
+            depths[i] = parent < 0 ? 0 : depths[parent] + 1;
+            // Ancestors from the root to the parent
+            int[] ancestors = new int[depths[i]];
+            if (parent >= 0) {
+                System.arraycopy(ancestorIndices[parent], 0, ancestors, 0, depths[parent]);
+                ancestors[depths[i] - 1] = parent;
+            }
+            ancestorIndices[i] = ancestors;
+            if (regions[i].acronym != null) acronymToIndex.putIfAbsent(regions[i].acronym, i);
+
+            // Exit time, closed below once all descendants are known
+            subtreeEnds[i] = i + 1;
+            int slot = idSlot(ids[i]);
+            while (idTableValues[slot] >= 0 && idTableKeys[slot] != ids[i]) slot = (slot + 1) & idTableMask;
+            idTableKeys[slot] = ids[i];
+            idTableValues[slot] = i;
+        }
+        // Children come after their parent, a backwards pass extends each parent to the end of its last descendant
+        for (int i = n - 1; i >= 0; i--) {
+            int parent = parentIndices[i];
+            if (parent >= 0) subtreeEnds[parent] = Math.max(subtreeEnds[parent], subtreeEnds[i]);
+        }
+    }
+
+    private static void flatten(List<AllenBrainRegion> regions, int parentIndex, List<AllenBrainRegion> flattened, List<Integer> parents) {
+        if (regions == null) return;
+        for (AllenBrainRegion region : regions) {
+            int index = flattened.size();
+            flattened.add(region);
+            parents.add(parentIndex);
+            flatten(region.children, index, flattened, parents);
+        }
+    }
+
+    private int idSlot(int id) {
+        return ((id * 0x9E3779B9) >>> 7) & idTableMask;
+    }
+
+    /**
+     * @param id an Allen region id
+     * @return the index of this region in this ontology, or -1 if the id is unknown
+     */
+    public int getIndex(int id) {
+        for (int slot = idSlot(id); idTableValues[slot] >= 0; slot = (slot + 1) & idTableMask) {
+            if (idTableKeys[slot] == id) return idTableValues[slot];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of regions in this ontology
+     */
+    public int size() {
+        return regions.length;
+    }
+
+    public AllenBrainRegion getRegion(int index) {
+        return regions[index];
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index the index of a region
+     * @return the index of its parent region, -1 for the root
+     */
+    public int getParentIndex(int index) {
+        return parentIndices[index];
+    }
+
+    /**
+     * @param index the index of a region
+     * @return its depth in the ontology, 0 for the root
+     */
+    public int getDepth(int index) {
+        return depths[index];
+    }
+
+    /**
+     * @param index the index of a region
+     * @return the indices of its ancestors, from the root to its parent. Shared array, do not modify.
+     */
+    public int[] getAncestorIndices(int index) {
+        return ancestorIndices[index];
+    }
+
+    /**
+     * @param acronym the acronym of a region, e.g. "Isocortex"
+     * @return the index of this region, or -1 if the acronym is unknown
+     */
+    public int getIndexFromAcronym(String acronym) {
+        return acronymToIndex.getOrDefault(acronym, -1);
+    }
+
+    /**
+     * @param acronymOrId the acronym or the Allen ID of a region, e.g. "HPF" or "1089"
+     * @return the index of this region, or -1 if it is unknown
+     */
+    public int resolveIndex(String acronymOrId) {
+        int index = getIndexFromAcronym(acronymOrId.trim());
+        if (index < 0) {
+            try {
+                index = getIndex(Integer.parseInt(acronymOrId.trim()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param index the index of a region
+     * @param ancestorIndex the index of a potential ancestor
+     * @return true if the region is the ancestor itself or one of its descendants
+     */
+    public boolean isDescendantOrSelf(int index, int ancestorIndex) {
+        return ancestorIndex <= index && index < subtreeEnds[ancestorIndex];
+    }
+
+    /**
+     * @param index the index of a region
+     * @return the index following the last descendant of this region: its subtree is [index, getSubtreeEnd(index))
+     */
+    public int getSubtreeEnd(int index) {
+        return subtreeEnds[index];
+    }
+
+    /**
+     * @param rootIndices indices of the roots of the subtrees
+     * @return for each region index, whether it belongs to one of the subtrees
+     */
+    public boolean[] getSubtreesMask(int... rootIndices) {
+        boolean[] mask = new boolean[regions.length];
+        for (int root : rootIndices) {
+            Arrays.fill(mask, root, subtreeEnds[root], true);
+        }
+        return mask;
+    }
 
     public AllenBrainRegion getRegionFromId(int id) {
-        return idToRegion.get(id);
+        int index = getIndex(id);
+        return index < 0 ? null : regions[index];
     }
 
 }
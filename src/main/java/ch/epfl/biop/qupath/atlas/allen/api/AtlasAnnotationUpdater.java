@@ -0,0 +1,389 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import ch.epfl.biop.qupath.utils.GeometryFingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.scripting.QP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Updates the atlas annotations of an image with a new import, replacing only the regions which changed.
+ * <p>
+ * After a registration is corrected in ABBA and exported again, most regions of a section are usually identical. Regions
+ * are matched by side and Allen ID, and compared through the fingerprints of their geometries
+ * ({@link GeometryFingerprint}). Unchanged regions are kept with their measurements and their child objects, changed
+ * regions are replaced, new regions are added and regions which disappeared are removed.
+ * <p>
+ * Only the objects whose region may have changed are re-parented: the children of the replaced and removed regions, and
+ * the detections directly under the parent of a changed region, which may now fall into it. They go to the deepest atlas
+ * region containing their centroid ({@link AtlasRegionIndex}), and detections tagged with
+ * {@link AtlasTools#assignDetectionsToAtlasRegions(qupath.lib.images.ImageData, AllenOntologyJson)} get their region
+ * measurements updated.
+ * <p>
+ * The update is computed first, from a snapshot of the atlas annotations and of their children taken on the thread
+ * which owns the hierarchy: fingerprints, new parents and the locations of the re-parented objects, which need a
+ * spatial index of the regions, can then be computed outside of the GUI thread. Applying it happens on the thread
+ * which owns the hierarchy, after checking that the objects concerned did not move in the meantime, and listeners get a
+ * single hierarchy change event.
+ */
+public class AtlasAnnotationUpdater {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasAnnotationUpdater.class);
+
+    // Key of the "Root" annotation which holds both hemispheres of split imports
+    final static private long ROOT_KEY = -1L;
+
+    /**
+     * The atlas annotations of a hierarchy and their direct children, captured on the thread which owns the hierarchy
+     * so that an update can be computed on another thread, see {@link #prepare(Snapshot, List, AllenOntologyJson, IntPredicate)}.
+     * Only references are copied, it is cheap to take.
+     */
+    public static class Snapshot {
+        private final PathObjectHierarchy hierarchy;
+        private final PathObject root;
+        // Atlas regions by key, with the Root of split imports
+        private final Map<Long, PathObject> existing = new HashMap<>();
+        private final Map<PathObject, PathObject> parents = new HashMap<>();
+        private final Map<PathObject, PathObject[]> children = new HashMap<>();
+
+        private Snapshot(PathObjectHierarchy hierarchy) {
+            this.hierarchy = hierarchy;
+            this.root = hierarchy.getRootObject();
+            for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+                long key = getKey(annotation);
+                if (key != ROOT_KEY) existing.put(key, annotation);
+            }
+            // The Root of a split import is the only atlas annotation without an Allen ID
+            for (PathObject annotation : existing.values()) {
+                PathObject parent = annotation.getParent();
+                if (isRoot(parent)) {
+                    existing.put(ROOT_KEY, parent);
+                    break;
+                }
+            }
+            for (PathObject object : existing.values()) {
+                parents.put(object, object.getParent());
+                children.put(object, object.getChildObjectsAsArray());
+            }
+            children.put(root, root.getChildObjectsAsArray());
+        }
+
+        private PathObject[] getChildren(PathObject object) {
+            PathObject[] objects = children.get(object);
+            return objects == null ? new PathObject[0] : objects;
+        }
+    }
+
+    private final Snapshot snapshot;
+    private final List<PathObject> atlasRoots;
+    private final AllenOntologyJson ontology;
+    private final IntPredicate regionIdFilter;
+    // True if the hierarchy has no atlas annotations yet, the new trees are then added as they are
+    private final boolean addAll;
+    private final List<PathObject> added;
+    private final Set<PathObject> stale;
+    // Parent of each region in the updated tree
+    private final Map<PathObject, PathObject> parents;
+    // Objects to re-parent with their parent in the snapshot, and the deepest region of the updated tree containing
+    // each of them, null if none
+    private final List<PathObject> moved;
+    private final Map<PathObject, PathObject> movedFrom;
+    private final AtlasRegionIndex.Region[] locations;
+    private final int nUnchanged;
+    private final int nChanges;
+    private final long prepareTime;
+
+    private AtlasAnnotationUpdater(Snapshot snapshot, List<PathObject> atlasRoots, AllenOntologyJson ontology, IntPredicate regionIdFilter, boolean addAll,
+                                   List<PathObject> added, Set<PathObject> stale, Map<PathObject, PathObject> parents, Map<PathObject, PathObject> movedFrom,
+                                   AtlasRegionIndex.Region[] locations, int nUnchanged, int nChanges, long prepareTime) {
+        this.snapshot = snapshot;
+        this.atlasRoots = atlasRoots;
+        this.ontology = ontology;
+        this.regionIdFilter = regionIdFilter;
+        this.addAll = addAll;
+        this.added = added;
+        this.stale = stale;
+        this.parents = parents;
+        this.movedFrom = movedFrom;
+        this.moved = new ArrayList<>(movedFrom.keySet());
+        this.locations = locations;
+        this.nUnchanged = nUnchanged;
+        this.nChanges = nChanges;
+        this.prepareTime = prepareTime;
+    }
+
+    /**
+     * Updates the atlas annotations of a hierarchy, or adds them if it has none. Has to be called from the thread which
+     * owns the hierarchy, i.e. the GUI thread for opened images, see {@link #prepare(Snapshot, List, AllenOntologyJson, IntPredicate)}
+     * to compute the update on another thread.
+     *
+     * @param hierarchy the hierarchy of the image, which may contain atlas annotations of a previous import
+     * @param atlasRoots the roots of the new atlas annotation trees, see
+     *                   {@link AtlasTools#createWarpedAtlasAnnotations(qupath.lib.images.ImageData, qupath.lib.projects.ProjectImageEntry, AllenOntologyJson, boolean, java.util.Collection, double)}
+     * @param ontology the Allen ontology used for the import
+     * @param regionIdFilter the filter used for a partial import, in which case existing regions outside of it are left
+     *                       untouched; null for a full import
+     * @return the number of regions which were replaced, added or removed
+     */
+    public static int update(PathObjectHierarchy hierarchy, List<PathObject> atlasRoots, AllenOntologyJson ontology, IntPredicate regionIdFilter) {
+        return prepare(snapshot(hierarchy), atlasRoots, ontology, regionIdFilter).apply();
+    }
+
+    /**
+     * Captures the atlas annotations of a hierarchy, to be called from the thread which owns the hierarchy
+     *
+     * @param hierarchy the hierarchy of the image
+     * @return the snapshot from which an update can be prepared on another thread
+     */
+    public static Snapshot snapshot(PathObjectHierarchy hierarchy) {
+        return new Snapshot(hierarchy);
+    }
+
+    /**
+     * Computes the update of the atlas annotations of a hierarchy from a snapshot, without reading nor modifying the
+     * hierarchy: the regions to replace, add and remove, and the new location of the objects to re-parent. This is the
+     * expensive part of the update, it can run outside of the GUI thread. If the hierarchy is edited in the meantime,
+     * {@link #apply()} detects it and computes the update again. See
+     * {@link #update(PathObjectHierarchy, List, AllenOntologyJson, IntPredicate)} for the parameters.
+     *
+     * @return the update, to apply from the thread which owns the hierarchy
+     */
+    public static AtlasAnnotationUpdater prepare(Snapshot snapshot, List<PathObject> atlasRoots, AllenOntologyJson ontology, IntPredicate regionIdFilter) {
+        long start = System.currentTimeMillis();
+
+        Map<Long, PathObject> existing = snapshot.existing;
+        if (existing.isEmpty()) {
+            int nRegions = atlasRoots.stream().mapToInt(root -> PathObjectTools.getFlattenedObjectList(root, null, true).size()).sum();
+            return new AtlasAnnotationUpdater(snapshot, atlasRoots, ontology, regionIdFilter, true, Collections.emptyList(), Collections.emptySet(),
+                    Collections.emptyMap(), Collections.emptyMap(), new AtlasRegionIndex.Region[0], 0, nRegions, System.currentTimeMillis() - start);
+        }
+
+        // Pre-order, so that parents are placed before their children
+        Map<Long, PathObject> imported = new LinkedHashMap<>();
+        for (PathObject atlasRoot : atlasRoots) {
+            for (PathObject object : PathObjectTools.getFlattenedObjectList(atlasRoot, null, true)) {
+                long key = getKey(object);
+                // The Root of a partial import only covers the imported subtrees, the existing one is kept
+                if (key == ROOT_KEY && regionIdFilter != null) continue;
+                imported.put(key, object);
+            }
+        }
+
+        // Fingerprints go through all the vertices, regions are compared in parallel
+        List<PathObject> added = imported.entrySet().parallelStream()
+                .filter(entry -> {
+                    PathObject previous = existing.get(entry.getKey());
+                    return previous == null || GeometryFingerprint.of(previous) != GeometryFingerprint.of(entry.getValue());
+                })
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+
+        // Final object of each region: the existing one if it did not change, the imported one otherwise
+        Map<Long, PathObject> kept = new HashMap<>(existing);
+        Set<PathObject> stale = new LinkedHashSet<>();
+        for (PathObject object : added) {
+            long key = getKey(object);
+            PathObject previous = kept.put(key, object);
+            if (previous != null) stale.add(previous);
+        }
+        existing.forEach((key, object) -> {
+            if (imported.containsKey(key) || !isInScope(key, object, regionIdFilter)) return;
+            stale.add(object);
+            kept.remove(key);
+        });
+        int nRemoved = stale.size() - (int) added.stream().filter(object -> existing.containsKey(getKey(object))).count();
+
+        // Objects whose region may change: children of stale regions, detections next to changed regions
+        Map<PathObject, PathObject> movedFrom = new LinkedHashMap<>();
+        for (PathObject object : stale) {
+            for (PathObject child : snapshot.getChildren(object)) {
+                if (!isAtlasObject(child)) movedFrom.put(child, object);
+            }
+            addDetections(snapshot, snapshot.parents.get(object), movedFrom);
+        }
+        for (PathObject object : added) {
+            addDetections(snapshot, getParent(object, kept, snapshot.root), movedFrom);
+        }
+
+        // Links the new regions and the kept regions whose parent was replaced
+        Map<PathObject, PathObject> parents = new HashMap<>();
+        for (PathObject object : imported.values()) {
+            PathObject current = kept.get(getKey(object));
+            parents.put(current, getParent(object, kept, snapshot.root));
+        }
+
+        AtlasRegionIndex.Region[] locations = locate(new ArrayList<>(movedFrom.keySet()), kept.values(), ontology);
+        return new AtlasAnnotationUpdater(snapshot, atlasRoots, ontology, regionIdFilter, false, added, stale, parents, movedFrom, locations,
+                imported.size() - added.size(), added.size() + nRemoved, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Applies the update to the hierarchy, with a single hierarchy change event. Has to be called from the thread
+     * which owns the hierarchy, i.e. the GUI thread for opened images. If the objects concerned by the update were
+     * edited since the snapshot, the update is computed again on this thread from the current hierarchy.
+     *
+     * @return the number of regions which were replaced, added or removed
+     */
+    public int apply() {
+        long start = System.currentTimeMillis();
+        PathObjectHierarchy hierarchy = snapshot.hierarchy;
+        if (!isUpToDate()) {
+            logger.warn("Atlas annotations were edited while the update was computed, computing it again");
+            return update(hierarchy, atlasRoots, ontology, regionIdFilter);
+        }
+        if (addAll) {
+            AtlasTools.addAtlasAnnotations(hierarchy, atlasRoots);
+            return nChanges;
+        }
+        if (nChanges == 0) {
+            logger.info("Atlas annotations are up to date, {} regions unchanged", nUnchanged);
+            return 0;
+        }
+
+        Map<PathObject, List<PathObject>> movedByParent = moved.stream().collect(Collectors.groupingBy(PathObject::getParent));
+        movedByParent.forEach(PathObject::removePathObjects);
+
+        // Links the new regions and the kept regions whose parent was replaced, then drops the stale ones
+        for (PathObject object : added) {
+            object.clearPathObjects();
+        }
+        parents.forEach((object, parent) -> {
+            if (object.getParent() != parent) parent.addPathObject(object);
+        });
+        hierarchy.getSelectionModel().deselectObjects(stale);
+        for (PathObject object : stale) {
+            object.getParent().removePathObject(object);
+        }
+
+        relocate();
+        hierarchy.fireHierarchyChangedEvent(AtlasAnnotationUpdater.class);
+
+        logger.info("Updated atlas annotations in {} ms, {} ms on the hierarchy: {} regions unchanged, {} replaced or added, {} removed, {} objects re-parented",
+                prepareTime + System.currentTimeMillis() - start, System.currentTimeMillis() - start, nUnchanged, added.size(), nChanges - added.size(), moved.size());
+        return nChanges;
+    }
+
+    // Checks that the objects the update moves or keeps are where the snapshot saw them, and that no object was added
+    // to or removed from the regions it drops
+    private boolean isUpToDate() {
+        if (addAll) {
+            for (PathObject annotation : snapshot.hierarchy.getAnnotationObjects()) {
+                if (getKey(annotation) != ROOT_KEY) return false;
+            }
+            return true;
+        }
+        for (Map.Entry<PathObject, PathObject> entry : snapshot.parents.entrySet()) {
+            if (entry.getKey().getParent() != entry.getValue()) return false;
+        }
+        for (PathObject object : stale) {
+            if (!Arrays.equals(object.getChildObjectsAsArray(), snapshot.getChildren(object))) return false;
+        }
+        for (Map.Entry<PathObject, PathObject> entry : movedFrom.entrySet()) {
+            if (entry.getKey().getParent() != entry.getValue()) return false;
+        }
+        return true;
+    }
+
+    // Deepest region of the updated tree containing the centroid of each object, located in parallel
+    private static AtlasRegionIndex.Region[] locate(List<PathObject> moved, Collection<PathObject> regions, AllenOntologyJson ontology) {
+        AtlasRegionIndex.Region[] locations = new AtlasRegionIndex.Region[moved.size()];
+        if (moved.isEmpty()) return locations;
+        AtlasRegionIndex index = new AtlasRegionIndex(regions, ontology);
+        IntStream.range(0, moved.size()).parallel().forEach(i -> {
+            ROI roi = PathObjectTools.getROI(moved.get(i), true);
+            locations[i] = roi == null ? null : index.getDeepestRegion(roi.getCentroidX(), roi.getCentroidY());
+        });
+        return locations;
+    }
+
+    // Places the objects in their region, the hierarchy root if they are outside of all regions
+    private void relocate() {
+        PathObject root = snapshot.root;
+        Map<PathObject, List<PathObject>> byRegion = new HashMap<>();
+        for (int i = 0; i < moved.size(); i++) {
+            PathObject object = moved.get(i);
+            AtlasRegionIndex.Region region = locations[i];
+            MeasurementList ml = object.getMeasurementList();
+            if (object.isDetection() && !Double.isNaN(ml.getMeasurementValue("Allen ID"))) {
+                // Tagged by assignDetectionsToAtlasRegions, the tag follows the new region
+                ml.putMeasurement("Allen ID", region == null ? Double.NaN : region.getAllenId());
+                ml.putMeasurement("Side", region == null ? Double.NaN : region.getSide());
+                ml.close();
+            }
+            byRegion.computeIfAbsent(region == null ? root : region.getAnnotation(), parent -> new ArrayList<>()).add(object);
+        }
+        byRegion.forEach(PathObject::addPathObjects);
+    }
+
+    // Parent of a region in the updated tree: its parent region on the same side, else the Root, else the hierarchy root
+    private static PathObject getParent(PathObject object, Map<Long, PathObject> kept, PathObject root) {
+        long key = getKey(object);
+        if (key != ROOT_KEY) {
+            double parentId = object.getMeasurementList().getMeasurementValue("Parent Allen ID");
+            PathObject parent = Double.isNaN(parentId) ? null : kept.get(getKey(getSide(object), (int) parentId));
+            if (parent != null) return parent;
+            if (kept.containsKey(ROOT_KEY)) return kept.get(ROOT_KEY);
+        }
+        return root;
+    }
+
+    private static void addDetections(Snapshot snapshot, PathObject parent, Map<PathObject, PathObject> movedFrom) {
+        if (parent == null) return;
+        for (PathObject child : snapshot.getChildren(parent)) {
+            if (child.isDetection()) movedFrom.putIfAbsent(child, parent);
+        }
+    }
+
+    private static boolean isInScope(long key, PathObject object, IntPredicate regionIdFilter) {
+        if (regionIdFilter == null) return true;
+        return key != ROOT_KEY && regionIdFilter.test((int) object.getMeasurementList().getMeasurementValue("Allen ID"));
+    }
+
+    private static boolean isAtlasObject(PathObject object) {
+        return object.isAnnotation() && (!Double.isNaN(object.getMeasurementList().getMeasurementValue("Allen ID")) || isRoot(object));
+    }
+
+    private static boolean isRoot(PathObject object) {
+        return object != null && object.isAnnotation() && "Root".equals(object.getName())
+                && Double.isNaN(object.getMeasurementList().getMeasurementValue("Allen ID"));
+    }
+
+    // Regions are identified by their side and Allen ID
+    private static long getKey(PathObject object) {
+        double id = object.getMeasurementList().getMeasurementValue("Allen ID");
+        if (Double.isNaN(id)) return ROOT_KEY;
+        return getKey(getSide(object), (int) id);
+    }
+
+    private static long getKey(int side, int allenId) {
+        return ((long) side << 32) | (allenId & 0xFFFFFFFFL);
+    }
+
+    private static int getSide(PathObject object) {
+        PathClass pathClass = object.getPathClass();
+        if (pathClass == null) return AtlasRegionIndex.SIDE_NONE;
+        if (pathClass.isDerivedFrom(QP.getPathClass("Left"))) return AtlasRegionIndex.SIDE_LEFT;
+        if (pathClass.isDerivedFrom(QP.getPathClass("Right"))) return AtlasRegionIndex.SIDE_RIGHT;
+        return AtlasRegionIndex.SIDE_NONE;
+    }
+}
@@ -0,0 +1,205 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ColorTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.writers.ome.OMEPyramidWriter;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Label image of the atlas regions of an image, rendered tile by tile so that whole slides can be exported at any
+ * resolution with a constant memory use.
+ * <p>
+ * Tiles are painted on demand by an {@link AtlasLabelRasterizer}: each pixel gets the label of the deepest imported
+ * region containing it, and the tiles of the downsampled levels are painted directly at their resolution. Labels are
+ * either Allen IDs (32 bits, the same on both sides of split imports) or compact indices, stable across sections:
+ * {@code side * ontology size + ontology index + 1}, with the side as in {@link AtlasRegionIndex}, 0 being the
+ * background (16 bits).
+ * <p>
+ * {@link #write(ImageData, AllenOntologyJson, File, boolean, double...)} streams the label image into a pyramidal
+ * OME-TIFF, the tiles being rendered and written in parallel.
+ */
+public class AtlasLabelImageServer extends AbstractTileableImageServer {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasLabelImageServer.class);
+
+    final static private int TILE_SIZE = 512;
+
+    final static private double[] DEFAULT_DOWNSAMPLES = {1, 4, 16, 64};
+
+    private final ImageServer<BufferedImage> server;
+    private final AtlasLabelRasterizer rasterizer;
+    private final ImageServerMetadata metadata;
+    private final ColorModel colorModel;
+    private final int dataType;
+    // Value written for each rasterizer label, the background being 0
+    private final int[] labelValues;
+
+    /**
+     * @param server the server of the image, which gives the size and calibration of the label image
+     * @param regions the atlas regions to paint, see {@link AtlasRegionIndex#getRegions()}
+     * @param ontology the Allen ontology used for the import
+     * @param allenIds true to label pixels with Allen IDs, false to use compact indices
+     * @param downsamples the resolution levels of the label image, full resolution if empty
+     */
+    public AtlasLabelImageServer(ImageServer<BufferedImage> server, Collection<AtlasRegionIndex.Region> regions, AllenOntologyJson ontology, boolean allenIds, double... downsamples) {
+        this.server = server;
+        this.rasterizer = new AtlasLabelRasterizer(regions);
+
+        int nRegions = ontology.size();
+        List<AtlasRegionIndex.Region> labelledRegions = rasterizer.getRegions();
+        labelValues = new int[labelledRegions.size() + 1];
+        for (int i = 0; i < labelledRegions.size(); i++) {
+            AtlasRegionIndex.Region region = labelledRegions.get(i);
+            labelValues[i + 1] = allenIds ? region.getAllenId() : region.getSide() * nRegions + region.getOntologyIndex() + 1;
+        }
+
+        // Allen IDs are all positive and below 2^31, compact indices fit in 16 bits for the Allen ontology
+        PixelType pixelType = allenIds || 3 * nRegions + 1 > 65535 ? PixelType.INT32 : PixelType.UINT16;
+        dataType = pixelType == PixelType.INT32 ? DataBuffer.TYPE_INT : DataBuffer.TYPE_USHORT;
+        List<ImageChannel> channels = Collections.singletonList(ImageChannel.getInstance(allenIds ? "Allen ID" : "Atlas region", ColorTools.makeRGB(255, 255, 255)));
+        colorModel = ColorModelFactory.createColorModel(pixelType, channels);
+        metadata = new ImageServerMetadata.Builder(server.getMetadata())
+                .name(server.getMetadata().getName() + " - atlas labels")
+                .pixelType(pixelType)
+                .rgb(false)
+                .channels(channels)
+                .preferredTileSize(TILE_SIZE, TILE_SIZE)
+                .levelsFromDownsamples(downsamples.length == 0 ? new double[]{1} : downsamples)
+                .build();
+    }
+
+    @Override
+    protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+        int width = tileRequest.getTileWidth();
+        int height = tileRequest.getTileHeight();
+        int[] labels = rasterizer.rasterize(tileRequest.getImageX(), tileRequest.getImageY(), width, height, tileRequest.getDownsample());
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = labelValues[labels[i]];
+        }
+        WritableRaster raster = Raster.createBandedRaster(dataType, width, height, 1, null);
+        raster.setSamples(0, 0, width, height, 0, labels);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return server.getURIs();
+    }
+
+    @Override
+    public String getServerType() {
+        return "Atlas label server";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+    // The labels only exist in memory, the server cannot be rebuilt from a project
+    @Override
+    protected ServerBuilder<BufferedImage> createServerBuilder() {
+        return null;
+    }
+
+    // Unique, so that cached tiles are never shared with another label server of the same image
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + server.getPath() + " " + UUID.randomUUID();
+    }
+
+    /**
+     * Writes the label image of the atlas regions of an image into a pyramidal OME-TIFF
+     *
+     * @param imageData the image data, with imported atlas annotations
+     * @param ontology the Allen ontology used for the import
+     * @param file the OME-TIFF file to write, e.g. "section.ome.tif"
+     * @param allenIds true to label pixels with Allen IDs, false to use compact indices
+     * @param downsamples the resolution levels to write, 1, 4, 16 and 64 if empty
+     * @return false if the image has no atlas regions
+     * @throws IOException if the file could not be written
+     */
+    public static boolean write(ImageData<BufferedImage> imageData, AllenOntologyJson ontology, File file, boolean allenIds, double... downsamples) throws IOException {
+        AtlasRegionIndex index = new AtlasRegionIndex(imageData.getHierarchy().getAnnotationObjects(), ontology);
+        if (index.size() == 0) {
+            logger.warn("No atlas regions found, were ABBA results imported?");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        double[] levels = downsamples.length == 0 ? DEFAULT_DOWNSAMPLES : downsamples;
+        AtlasLabelImageServer labelServer = new AtlasLabelImageServer(imageData.getServer(), index.getRegions(), ontology, allenIds, levels);
+        try {
+            new OMEPyramidWriter.Builder(labelServer)
+                    .tileSize(TILE_SIZE)
+                    .downsamples(levels)
+                    .compression(OMEPyramidWriter.CompressionType.ZLIB)
+                    .parallelize()
+                    .build()
+                    .writePyramid(file.getAbsolutePath());
+        } finally {
+            close(labelServer);
+        }
+        logger.info("Wrote atlas labels of {} regions to {} in {} ms", index.size(), file, System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * Writes the label images of all the sections of a project which have atlas annotations, one OME-TIFF per entry
+     * named after the image
+     *
+     * @param project the project
+     * @param ontology the Allen ontology used for the import
+     * @param folder the folder receiving the label images
+     * @param allenIds true to label pixels with Allen IDs, false to use compact indices
+     * @param downsamples the resolution levels to write, 1, 4, 16 and 64 if empty
+     * @return the number of label images written
+     * @throws IOException if a file could not be written
+     */
+    public static int exportProject(Project<BufferedImage> project, AllenOntologyJson ontology, File folder, boolean allenIds, double... downsamples) throws IOException {
+        int nWritten = 0;
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            if (!entry.hasImageData()) continue;
+            ImageData<BufferedImage> imageData = entry.readImageData();
+            String name = entry.getImageName().replaceAll("[\\\\/:*?\"<>|]", "_");
+            try {
+                if (write(imageData, ontology, new File(folder, name + "_atlas_labels.ome.tif"), allenIds, downsamples)) nWritten++;
+            } finally {
+                close(imageData.getServer());
+            }
+        }
+        return nWritten;
+    }
+
+    private static void close(ImageServer<?> server) {
+        try {
+            server.close();
+        } catch (Exception e) {
+            logger.warn("Could not close " + server.getPath(), e);
+        }
+    }
+}
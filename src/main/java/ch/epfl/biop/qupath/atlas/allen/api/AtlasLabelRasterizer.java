@@ -0,0 +1,92 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Paints atlas regions into label images, one label per region, tile by tile.
+ * <p>
+ * Regions are painted from the shallowest to the deepest in the ontology, so that every pixel ends up with the label
+ * of the most specific region containing it: leaf regions keep all their pixels, and a parent region only keeps the
+ * pixels which are not in any of its imported sub-regions. Each pixel therefore has a single label, and statistics of
+ * the parent regions are obtained by summing the ones of their descendants.
+ * <p>
+ * Label 0 is the background, label {@code i + 1} is the region {@code i} of {@link #getRegions()}.
+ * Instances can be used from several threads.
+ */
+public class AtlasLabelRasterizer {
+
+    private final List<AtlasRegionIndex.Region> regions;
+    private final Envelope[] envelopes;
+
+    /**
+     * @param regions the atlas regions to paint, see {@link AtlasRegionIndex#getRegions()}
+     */
+    public AtlasLabelRasterizer(Collection<AtlasRegionIndex.Region> regions) {
+        this.regions = new ArrayList<>(regions);
+        this.regions.sort(Comparator.comparingInt(region -> region.depth));
+        this.envelopes = new Envelope[this.regions.size()];
+        for (int i = 0; i < envelopes.length; i++) {
+            envelopes[i] = this.regions.get(i).geometry.getExact().getEnvelopeInternal();
+        }
+    }
+
+    /**
+     * @return the painted regions, in the order of their labels minus one
+     */
+    public List<AtlasRegionIndex.Region> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @param label a label of a rasterized tile
+     * @return the region of this label, null for the background
+     */
+    public AtlasRegionIndex.Region getRegion(int label) {
+        return label <= 0 ? null : regions.get(label - 1);
+    }
+
+    /**
+     * Paints the labels of a tile
+     *
+     * @param x left of the tile, in pixels of the full resolution image
+     * @param y top of the tile, in pixels of the full resolution image
+     * @param width width of the tile, in pixels at the requested downsample
+     * @param height height of the tile, in pixels at the requested downsample
+     * @param downsample downsample of the tile
+     * @return the labels, row by row
+     */
+    public int[] rasterize(double x, double y, int width, int height, double downsample) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Envelope tile = new Envelope(x, x + width * downsample, y, y + height * downsample);
+
+        Graphics2D g2d = image.createGraphics();
+        // Labels must not be blended
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        AffineTransform transform = AffineTransform.getScaleInstance(1.0 / downsample, 1.0 / downsample);
+        transform.translate(-x, -y);
+        g2d.setTransform(transform);
+        for (int i = 0; i < regions.size(); i++) {
+            if (!envelopes[i].intersects(tile)) continue;
+            g2d.setColor(new Color(i + 1));
+            g2d.fill(regions.get(i).annotation.getROI().getShape());
+        }
+        g2d.dispose();
+
+        int[] labels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        // TYPE_INT_RGB has no alpha, the pixel value is the label
+        for (int i = 0; i < labels.length; i++) labels[i] &= 0xFFFFFF;
+        return labels;
+    }
+}
@@ -0,0 +1,288 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import ij.measure.ResultsTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Counts detections per atlas region and per class, and sums the counts and areas up the Allen ontology.
+ * <p>
+ * Each detection is counted once, in the deepest region containing its centroid (see {@link AtlasRegionIndex}).
+ * Counts are then accumulated into all the ancestors in a single pass over the ontology, which is stored in depth
+ * first order: iterating it backwards visits every region before its parent. Regions which were not imported get
+ * the area of their imported sub-regions. Counts are stored per side, so split and non split imports are both handled.
+ * <p>
+ * Aggregators of several images can be added together to get project-wide counts, see
+ * {@link #aggregateProject(Project, AllenOntologyJson, boolean)}.
+ */
+public class AtlasRegionAggregator {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasRegionAggregator.class);
+
+    final static private String[] SIDE_NAMES = {"", "Left", "Right"};
+    final static private String UNCLASSIFIED = "Unclassified";
+
+    private final AllenOntologyJson ontology;
+    private final int nRegions;
+
+    // Slot of a region on a side: side * nRegions + ontology index
+    private final double[] areas;
+    private final boolean[] imported;
+    private final List<String> classNames = new ArrayList<>();
+    private final Map<String, long[]> counts = new HashMap<>();
+
+    private int nImages = 0;
+    // Areas are in square microns if all the aggregated images are calibrated, in square pixels otherwise
+    private boolean calibrated = true;
+
+    /**
+     * Creates an empty aggregator
+     *
+     * @param ontology the Allen ontology of the ABBA project
+     */
+    public AtlasRegionAggregator(AllenOntologyJson ontology) {
+        this.ontology = ontology;
+        this.nRegions = ontology.size();
+        this.areas = new double[SIDE_NAMES.length * nRegions];
+        this.imported = new boolean[SIDE_NAMES.length * nRegions];
+    }
+
+    /**
+     * Counts the detections of an image per atlas region and per class, areas are in square microns if the image is
+     * calibrated, in square pixels otherwise
+     *
+     * @param imageData an image with imported atlas annotations
+     * @param ontology the Allen ontology used for the import
+     * @return the aggregated counts and areas of this image
+     */
+    public static AtlasRegionAggregator of(ImageData<?> imageData, AllenOntologyJson ontology) {
+        AtlasRegionAggregator aggregator = new AtlasRegionAggregator(ontology);
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        AtlasRegionIndex index = new AtlasRegionIndex(hierarchy.getAnnotationObjects(), ontology);
+        if (index.size() == 0) {
+            logger.warn("No atlas regions found, were ABBA results imported?");
+            return aggregator;
+        }
+
+        PixelCalibration cal = imageData.getServer().getPixelCalibration();
+        if (!cal.hasPixelSizeMicrons()) {
+            logger.warn("Image is not calibrated, areas are in square pixels and densities per million pixels");
+        }
+        double pixelWidth = cal.hasPixelSizeMicrons() ? cal.getPixelWidthMicrons() : 1;
+        double pixelHeight = cal.hasPixelSizeMicrons() ? cal.getPixelHeightMicrons() : 1;
+        for (AtlasRegionIndex.Region region : index.getRegions()) {
+            int slot = aggregator.slot(region.getSide(), region.getOntologyIndex());
+            aggregator.areas[slot] += region.getAnnotation().getROI().getScaledArea(pixelWidth, pixelHeight);
+            aggregator.imported[slot] = true;
+        }
+        aggregator.calibrated = cal.hasPixelSizeMicrons();
+
+        // Locating the detections is the expensive part, counting is done afterwards on a single thread
+        List<PathObject> detections = new ArrayList<>(hierarchy.getDetectionObjects());
+        int[] slots = new int[detections.size()];
+        IntStream.range(0, slots.length).parallel().forEach(i -> {
+            ROI roi = PathObjectTools.getROI(detections.get(i), true);
+            AtlasRegionIndex.Region region = index.getDeepestRegion(roi.getCentroidX(), roi.getCentroidY());
+            slots[i] = region == null ? -1 : aggregator.slot(region.getSide(), region.getOntologyIndex());
+        });
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] < 0) continue;
+            PathObject detection = detections.get(i);
+            String className = detection.getPathClass() == null ? UNCLASSIFIED : detection.getPathClass().toString();
+            aggregator.getCounts(className)[slots[i]]++;
+        }
+
+        aggregator.rollup();
+        aggregator.nImages = 1;
+        return aggregator;
+    }
+
+    private int slot(int side, int index) {
+        return side * nRegions + index;
+    }
+
+    private long[] getCounts(String className) {
+        return counts.computeIfAbsent(className, name -> {
+            classNames.add(name);
+            return new long[areas.length];
+        });
+    }
+
+    // Children always come after their parent in the ontology, so a backwards pass sees every region before its parent
+    private void rollup() {
+        for (int side = 0; side < SIDE_NAMES.length; side++) {
+            for (int i = nRegions - 1; i >= 0; i--) {
+                int parent = ontology.getParentIndex(i);
+                if (parent < 0) continue;
+                int slot = slot(side, i);
+                int parentSlot = slot(side, parent);
+                for (long[] classCounts : counts.values()) {
+                    classCounts[parentSlot] += classCounts[slot];
+                }
+                // An imported region already covers its sub-regions
+                if (!imported[parentSlot]) {
+                    areas[parentSlot] += areas[slot];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the counts and areas of another aggregator, e.g. of another image of the same project
+     *
+     * @param other an aggregator using the same ontology
+     */
+    public void add(AtlasRegionAggregator other) {
+        if (other.nRegions != nRegions) {
+            throw new IllegalArgumentException("Cannot merge aggregators of different ontologies");
+        }
+        for (int i = 0; i < areas.length; i++) {
+            areas[i] += other.areas[i];
+            imported[i] |= other.imported[i];
+        }
+        for (String className : other.classNames) {
+            long[] source = other.counts.get(className);
+            long[] target = getCounts(className);
+            for (int i = 0; i < target.length; i++) target[i] += source[i];
+        }
+        if (nImages > 0 && other.nImages > 0 && calibrated != other.calibrated) {
+            logger.warn("Merging calibrated and uncalibrated images, areas in square microns and in square pixels are added up");
+        }
+        calibrated = nImages == 0 ? other.calibrated : calibrated && other.calibrated;
+        nImages += other.nImages;
+    }
+
+    /**
+     * @return the number of images aggregated
+     */
+    public int getNumberOfImages() {
+        return nImages;
+    }
+
+    /**
+     * @param allenId the Allen ID of a region
+     * @param side 0 for non split regions, 1 for Left, 2 for Right
+     * @param className the class of the detections, "Unclassified" for detections without class
+     * @return the number of detections of this class in the region and its sub-regions
+     */
+    public long getCount(int allenId, int side, String className) {
+        int index = ontology.getIndex(allenId);
+        long[] classCounts = counts.get(className);
+        return index < 0 || classCounts == null ? 0 : classCounts[slot(side, index)];
+    }
+
+    /**
+     * Appends one row per region and side with a non zero area or count: image name, side, region identification,
+     * area, then the number and the density (per square millimeter) of detections of each class. Columns of
+     * uncalibrated images give areas in square pixels and densities per million pixels.
+     *
+     * @param imageName value of the "Image Name" column
+     * @param table the table which receives the rows
+     * @return the table
+     */
+    public ResultsTable appendToResultsTable(String imageName, ResultsTable table) {
+        long[] totals = new long[areas.length];
+        for (long[] classCounts : counts.values()) {
+            for (int i = 0; i < totals.length; i++) totals[i] += classCounts[i];
+        }
+
+        String areaColumn = calibrated ? "Area um^2" : "Area px^2";
+        String densityUnit = calibrated ? " per mm^2" : " per Mpx";
+
+        for (int side = 0; side < SIDE_NAMES.length; side++) {
+            for (int i = 0; i < nRegions; i++) {
+                int slot = slot(side, i);
+                if (areas[slot] == 0 && totals[slot] == 0) continue;
+                AllenOntologyJson.AllenBrainRegion region = ontology.getRegion(i);
+                // Square millimeters, or millions of pixels if not calibrated
+                double areaMM2 = areas[slot] / 1e6;
+
+                table.incrementCounter();
+                table.addValue("Image Name", imageName);
+                table.addValue("Side", SIDE_NAMES[side]);
+                table.addValue("Allen ID", region.id);
+                table.addValue("Acronym", region.acronym);
+                table.addValue("Name", region.name);
+                table.addValue("Depth", ontology.getDepth(i));
+                table.addValue(areaColumn, areas[slot]);
+                table.addValue("Num Detections", totals[slot]);
+                table.addValue("Density Detections" + densityUnit, areaMM2 > 0 ? totals[slot] / areaMM2 : Double.NaN);
+                for (String className : classNames) {
+                    long count = counts.get(className)[slot];
+                    table.addValue("Num " + className, count);
+                    table.addValue("Density " + className + densityUnit, areaMM2 > 0 ? count / areaMM2 : Double.NaN);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param imageName value of the "Image Name" column
+     * @return a new table with the counts and densities of all regions, see {@link #appendToResultsTable(String, ResultsTable)}
+     */
+    public ResultsTable toResultsTable(String imageName) {
+        return appendToResultsTable(imageName, new ResultsTable());
+    }
+
+    /**
+     * Aggregates all the entries of a project which contain atlas annotations into a single table, one block of rows
+     * per entry. Entries are read one at a time, so that only one image data is in memory.
+     *
+     * @param project the ABBA project
+     * @param ontology the Allen ontology of the project, see {@link AtlasTools#getOntology(Project)}
+     * @param merge if true, rows with the counts and areas summed over all entries are appended, with "Image Name"
+     *              set to "All images"
+     * @return the table of all entries
+     */
+    public static ResultsTable aggregateProject(Project<BufferedImage> project, AllenOntologyJson ontology, boolean merge) {
+        ResultsTable table = new ResultsTable();
+        AtlasRegionAggregator total = new AtlasRegionAggregator(ontology);
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            if (!entry.hasImageData()) continue;
+            ImageData<BufferedImage> imageData = null;
+            try {
+                long start = System.currentTimeMillis();
+                imageData = entry.readImageData();
+                AtlasRegionAggregator aggregator = of(imageData, ontology);
+                if (aggregator.getNumberOfImages() == 0) continue;
+                aggregator.appendToResultsTable(entry.getImageName(), table);
+                if (merge) total.add(aggregator);
+                logger.info("Aggregated atlas region counts of {} in {} ms", entry.getImageName(), System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                logger.error("Could not aggregate atlas region counts of " + entry.getImageName(), e);
+            } finally {
+                // The reader is closed even if the aggregation failed
+                if (imageData != null) close(imageData, entry);
+            }
+        }
+        if (merge && total.getNumberOfImages() > 0) {
+            total.appendToResultsTable("All images", table);
+        }
+        return table;
+    }
+
+    private static void close(ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry) {
+        try {
+            imageData.getServer().close();
+        } catch (Exception e) {
+            logger.warn("Could not close the server of " + entry.getImageName(), e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import ch.epfl.biop.qupath.atlas.allen.utils.PackedGeometries;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.index.strtree.STRtree;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.scripting.QP;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spatial index of the atlas region annotations of an image, to find the most specific region containing a point.
+ * <p>
+ * Regions are stored in an STR-tree: a query only tests the few regions whose envelope contains the point, and among
+ * the ones which contain it, the deepest in the ontology wins. Containment is first tested on simplified versions of the
+ * regions, see {@link MultiResolutionGeometry}, the exact geometries are only used close to the region boundaries. The
+ * geometries are built from the ROIs of the annotations and belong to the index, they are released with it. Once built,
+ * the index is read only and can be queried from several threads.
+ */
+public class AtlasRegionIndex {
+
+    public static final int SIDE_NONE = 0;
+    public static final int SIDE_LEFT = 1;
+    public static final int SIDE_RIGHT = 2;
+
+    /**
+     * An atlas region annotation, as stored in the index
+     */
+    public static class Region {
+        final PathObject annotation;
+        final MultiResolutionGeometry geometry;
+        final int allenId;
+        final int ontologyIndex;
+        final int depth;
+        final int side;
+        final String acronym;
+
+        Region(PathObject annotation, MultiResolutionGeometry geometry, int allenId, int ontologyIndex, int depth, int side, String acronym) {
+            this.annotation = annotation;
+            this.geometry = geometry;
+            this.allenId = allenId;
+            this.ontologyIndex = ontologyIndex;
+            this.depth = depth;
+            this.side = side;
+            this.acronym = acronym;
+        }
+
+        public PathObject getAnnotation() {
+            return annotation;
+        }
+
+        public int getAllenId() {
+            return allenId;
+        }
+
+        public int getOntologyIndex() {
+            return ontologyIndex;
+        }
+
+        /**
+         * @return {@link #SIDE_LEFT}, {@link #SIDE_RIGHT} or {@link #SIDE_NONE} if the regions were not split
+         */
+        public int getSide() {
+            return side;
+        }
+
+        public String getAcronym() {
+            return acronym;
+        }
+    }
+
+    private final STRtree tree = new STRtree();
+    private final List<Region> regions = new ArrayList<>();
+    private final GeometryFactory factory = new GeometryFactory();
+
+    /**
+     * Indexes the atlas region annotations, i.e. the annotations with an "Allen ID" measurement known by the ontology
+     *
+     * @param annotations annotations of an image, others than atlas regions are ignored
+     * @param ontology the Allen ontology used for the import
+     */
+    public AtlasRegionIndex(Collection<PathObject> annotations, AllenOntologyJson ontology) {
+        PathClass leftClass = QP.getPathClass("Left");
+        PathClass rightClass = QP.getPathClass("Right");
+        for (PathObject annotation : annotations) {
+            if (annotation.getROI() == null || !annotation.getROI().isArea()) continue;
+            double id = annotation.getMeasurementList().getMeasurementValue("Allen ID");
+            if (Double.isNaN(id)) continue;
+            int index = ontology.getIndex((int) id);
+            if (index < 0) continue;
+
+            int side = SIDE_NONE;
+            PathClass pathClass = annotation.getPathClass();
+            if (pathClass != null && pathClass.isDerivedFrom(leftClass)) side = SIDE_LEFT;
+            else if (pathClass != null && pathClass.isDerivedFrom(rightClass)) side = SIDE_RIGHT;
+
+            MultiResolutionGeometry geometry = new MultiResolutionGeometry(PackedGeometries.pack(annotation.getROI().getGeometry()));
+            Region region = new Region(annotation, geometry, (int) id, index, ontology.getDepth(index), side, ontology.getRegion(index).acronym);
+            regions.add(region);
+            tree.insert(geometry.getExact().getEnvelopeInternal(), region);
+        }
+        // Building is lazy in STRtree and not thread safe, it has to happen before concurrent queries
+        tree.build();
+    }
+
+    /**
+     * @return the indexed regions, in no particular order
+     */
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * @return the number of indexed regions
+     */
+    public int size() {
+        return regions.size();
+    }
+
+    /**
+     * Finds the deepest region containing a point. Points on a region boundary are considered inside.
+     *
+     * @param x x coordinate, in pixels of the full resolution image
+     * @param y y coordinate, in pixels of the full resolution image
+     * @return the most specific region containing the point, or null if the point is outside all regions
+     */
+    @SuppressWarnings("unchecked")
+    public Region getDeepestRegion(double x, double y) {
+        if (regions.isEmpty()) return null;
+        List<Region> candidates = tree.query(new Envelope(x, x, y, y));
+        if (candidates.isEmpty()) return null;
+
+        Point point = factory.createPoint(new Coordinate(x, y));
+        Region best = null;
+        for (Region candidate : candidates) {
+            // A deeper region is necessarily inside the current best one, only test the candidates which could win
+            if (best != null && candidate.depth <= best.depth) continue;
+            if (candidate.geometry.contains(point)) best = candidate;
+        }
+        return best;
+    }
+}
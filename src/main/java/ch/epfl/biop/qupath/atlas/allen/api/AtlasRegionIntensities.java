@@ -0,0 +1,340 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Measures the intensities of all atlas regions of an image in a single pass over its pixels.
+ * <p>
+ * Measuring each region annotation separately reads the pixels of nested regions again and again. Here, the regions
+ * are rasterized into a label map tile by tile ({@link AtlasLabelRasterizer}), each pixel tile is read once and its
+ * values are accumulated into the statistics of its label. The statistics of the parent regions are then obtained by
+ * merging the ones of their sub-regions, in one backwards pass over the ontology.
+ * <p>
+ * Mean, standard deviation, min and max are exact. Percentiles are computed from histograms of integer pixel values,
+ * 256 bins for 8 bits images and 4096 for 16 bits images, which cover the values observed in each region and channel,
+ * see {@link Histogram}. They are exact when these values span fewer integers than there are bins, i.e. always for
+ * 8 bits images. Otherwise the error is at most the width of a bin, itself at most twice the observed range divided by
+ * the number of bins minus one, e.g. 16 for 16 bits values spanning the full 0-65535 range. They are not computed for float images.
+ */
+public class AtlasRegionIntensities {
+
+    final static Logger logger = LoggerFactory.getLogger(AtlasRegionIntensities.class);
+
+    final static private int N_SIDES = 3;
+    final static private int N_BINS_UINT8 = 256;
+    final static private int N_BINS_UINT16 = 4096;
+    final static private int TILE_SIZE = 1024;
+
+    /**
+     * Histogram of integer values, with a fixed number of bins whose width is a power of two. Bins start at a multiple of
+     * their width, from the smallest value added. The width doubles whenever a value falls outside of the range, so
+     * the histogram covers the observed values only. As all bin edges are multiples of the widths, histograms of
+     * different ranges are merged without any loss, into the coarser width.
+     * <p>
+     * The width is at most 2 (max - min) / (nBins - 1), and 1 when the values span fewer integers than there are bins.
+     */
+    private static class Histogram {
+        final long[] counts;
+        long origin = 0;
+        int shift = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        Histogram(int nBins) {
+            counts = new long[nBins];
+        }
+
+        void add(long value) {
+            if (min > max) {
+                origin = value;
+            } else if (value < origin || value - origin >= ((long) counts.length << shift)) {
+                grow(Math.min(min, value), Math.max(max, value), shift);
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            counts[(int) ((value - origin) >> shift)]++;
+        }
+
+        void merge(Histogram other) {
+            if (other.min > other.max) return;
+            if (min > max) {
+                origin = other.origin;
+                shift = other.shift;
+            } else {
+                grow(Math.min(min, other.min), Math.max(max, other.max), Math.max(shift, other.shift));
+            }
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            for (int b = 0; b < other.counts.length; b++) {
+                if (other.counts[b] > 0) counts[getBin(other.origin + ((long) b << other.shift))] += other.counts[b];
+            }
+        }
+
+        // Re-bins the counts into the finest width, not below minShift, covering [low, high]
+        private void grow(long low, long high, int minShift) {
+            int newShift = minShift;
+            long newOrigin = Math.floorDiv(low, 1L << newShift) << newShift;
+            while (high - newOrigin >= ((long) counts.length << newShift)) {
+                newShift++;
+                newOrigin = Math.floorDiv(low, 1L << newShift) << newShift;
+            }
+            if (newShift == shift && newOrigin == origin) return;
+            long[] previous = counts.clone();
+            long previousOrigin = origin;
+            int previousShift = shift;
+            origin = newOrigin;
+            shift = newShift;
+            Arrays.fill(counts, 0);
+            if (min > max) return;
+            for (int b = 0; b < previous.length; b++) {
+                if (previous[b] > 0) counts[getBin(previousOrigin + ((long) b << previousShift))] += previous[b];
+            }
+        }
+
+        private int getBin(long value) {
+            return (int) ((value - origin) >> shift);
+        }
+
+        double getPercentile(double percentile, long n) {
+            long rank = (long) Math.ceil(percentile / 100.0 * n);
+            long width = 1L << shift;
+            long cumulative = 0;
+            for (int b = 0; b < counts.length; b++) {
+                long count = counts[b];
+                if (count > 0 && cumulative + count >= rank) {
+                    // Linear interpolation within the bin, values are exact with bins of one integer
+                    double fraction = (rank - cumulative) / (double) count;
+                    double value = origin + b * width + (width == 1 ? 0 : fraction * width);
+                    return Math.max(min, Math.min(max, value));
+                }
+                cumulative += count;
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Statistics of the pixels of a label, for all channels
+     */
+    private static class Stats {
+        long n = 0;
+        final double[] sum;
+        final double[] sumSquares;
+        final double[] min;
+        final double[] max;
+        final Histogram[] histograms;
+
+        /**
+         * @param nChannels the number of channels
+         * @param nBins the number of bins of the histograms, 0 for no histograms
+         */
+        Stats(int nChannels, int nBins) {
+            sum = new double[nChannels];
+            sumSquares = new double[nChannels];
+            min = new double[nChannels];
+            max = new double[nChannels];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            if (nBins > 0) {
+                histograms = new Histogram[nChannels];
+                for (int c = 0; c < nChannels; c++) histograms[c] = new Histogram(nBins);
+            } else {
+                histograms = null;
+            }
+        }
+
+        int getBins() {
+            return histograms == null ? 0 : histograms[0].counts.length;
+        }
+
+        void merge(Stats other) {
+            n += other.n;
+            for (int c = 0; c < sum.length; c++) {
+                sum[c] += other.sum[c];
+                sumSquares[c] += other.sumSquares[c];
+                min[c] = Math.min(min[c], other.min[c]);
+                max[c] = Math.max(max[c], other.max[c]);
+                if (histograms != null) histograms[c].merge(other.histograms[c]);
+            }
+        }
+
+        double getPercentile(int c, double percentile) {
+            return histograms[c].getPercentile(percentile, n);
+        }
+    }
+
+    /**
+     * Measures all atlas regions of an image and adds the measurements to the region annotations, as
+     * "channel: Mean", "channel: Std.Dev.", "channel: Min", "channel: Max" and "channel: Percentile p"
+     *
+     * @param imageData the image, with imported atlas annotations
+     * @param ontology the Allen ontology used for the import
+     * @param downsample the downsample at which to read the pixels
+     * @param percentiles the percentiles to measure, e.g. 50 for the median
+     * @return the number of region annotations measured
+     * @throws IOException if the pixels could not be read
+     */
+    public static int measure(ImageData<BufferedImage> imageData, AllenOntologyJson ontology, double downsample, double... percentiles) throws IOException {
+        long start = System.currentTimeMillis();
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        AtlasRegionIndex index = new AtlasRegionIndex(hierarchy.getAnnotationObjects(), ontology);
+        if (index.size() == 0) {
+            logger.warn("No atlas regions found, were ABBA results imported?");
+            return 0;
+        }
+        AtlasLabelRasterizer rasterizer = new AtlasLabelRasterizer(index.getRegions());
+
+        ImageServer<BufferedImage> server = imageData.getServer();
+        int nChannels = server.nChannels();
+        PixelType pixelType = server.getPixelType();
+        int nBins = pixelType == PixelType.UINT8 ? N_BINS_UINT8 : pixelType == PixelType.UINT16 ? N_BINS_UINT16 : 0;
+
+        // Tiles are processed in parallel, each one accumulates the few labels it contains before merging them
+        Stats[] labelStats = new Stats[rasterizer.getRegions().size() + 1];
+        int levelWidth = (int) Math.ceil(server.getWidth() / downsample);
+        int levelHeight = (int) Math.ceil(server.getHeight() / downsample);
+        int nTilesX = (levelWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int nTilesY = (levelHeight + TILE_SIZE - 1) / TILE_SIZE;
+        try {
+            IntStream.range(0, nTilesX * nTilesY).parallel().forEach(t -> {
+                // Bounds come from the rounded grid edges, so that consecutive tiles share them without gaps or overlaps
+                int x = getGridEdge(t % nTilesX, downsample, server.getWidth());
+                int y = getGridEdge(t / nTilesX, downsample, server.getHeight());
+                int w = getGridEdge(t % nTilesX + 1, downsample, server.getWidth()) - x;
+                int h = getGridEdge(t / nTilesX + 1, downsample, server.getHeight()) - y;
+                if (w <= 0 || h <= 0) return;
+                Map<Integer, Stats> tileStats;
+                try {
+                    tileStats = measureTile(server, rasterizer, RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h), nChannels, nBins);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                synchronized (labelStats) {
+                    tileStats.forEach((label, stats) -> {
+                        if (labelStats[label] == null) labelStats[label] = stats;
+                        else labelStats[label].merge(stats);
+                    });
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // Labels to ontology slots, then parents get the statistics of their sub-regions
+        int nRegions = ontology.size();
+        Stats[] slotStats = new Stats[N_SIDES * nRegions];
+        for (int label = 1; label < labelStats.length; label++) {
+            if (labelStats[label] == null) continue;
+            AtlasRegionIndex.Region region = rasterizer.getRegion(label);
+            mergeInto(slotStats, region.getSide() * nRegions + region.getOntologyIndex(), labelStats[label]);
+        }
+        for (int side = 0; side < N_SIDES; side++) {
+            for (int i = nRegions - 1; i >= 0; i--) {
+                int parent = ontology.getParentIndex(i);
+                Stats stats = slotStats[side * nRegions + i];
+                if (parent < 0 || stats == null) continue;
+                mergeInto(slotStats, side * nRegions + parent, stats);
+            }
+        }
+
+        List<ImageChannel> channels = server.getMetadata().getChannels();
+        List<PathObject> measured = new ArrayList<>();
+        for (AtlasRegionIndex.Region region : index.getRegions()) {
+            Stats stats = slotStats[region.getSide() * nRegions + region.getOntologyIndex()];
+            if (stats == null || stats.n == 0) continue;
+            MeasurementList ml = region.getAnnotation().getMeasurementList();
+            for (int c = 0; c < nChannels; c++) {
+                String name = channels.get(c).getName() + ": ";
+                double mean = stats.sum[c] / stats.n;
+                ml.putMeasurement(name + "Mean", mean);
+                ml.putMeasurement(name + "Std.Dev.", Math.sqrt(Math.max(0, stats.sumSquares[c] / stats.n - mean * mean)));
+                ml.putMeasurement(name + "Min", stats.min[c]);
+                ml.putMeasurement(name + "Max", stats.max[c]);
+                if (nBins > 0) {
+                    for (double percentile : percentiles) {
+                        ml.putMeasurement(name + "Percentile " + percentile, stats.getPercentile(c, percentile));
+                    }
+                }
+            }
+            ml.close();
+            measured.add(region.getAnnotation());
+        }
+        hierarchy.fireObjectMeasurementsChangedEvent(AtlasRegionIntensities.class, measured);
+        logger.info("Measured {} atlas regions over {} tiles in {} ms", measured.size(), nTilesX * nTilesY, System.currentTimeMillis() - start);
+        return measured.size();
+    }
+
+    // Parents are merged into copies, as the statistics of a label or a child must stay unchanged
+    private static void mergeInto(Stats[] slotStats, int slot, Stats stats) {
+        if (slotStats[slot] == null) {
+            slotStats[slot] = new Stats(stats.sum.length, stats.getBins());
+        }
+        slotStats[slot].merge(stats);
+    }
+
+    // Full resolution coordinate of the edge between tiles index - 1 and index, clipped to the image
+    private static int getGridEdge(int index, double downsample, int size) {
+        return (int) Math.min(size, Math.round(index * TILE_SIZE * downsample));
+    }
+
+    private static Map<Integer, Stats> measureTile(ImageServer<BufferedImage> server, AtlasLabelRasterizer rasterizer, RegionRequest request, int nChannels, int nBins) throws IOException {
+        Map<Integer, Stats> tileStats = new HashMap<>();
+        BufferedImage image = server.readBufferedImage(request);
+        if (image == null) return tileStats;
+        Raster raster = image.getRaster();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] labels = rasterizer.rasterize(request.getX(), request.getY(), width, height, request.getDownsample());
+
+        double[] values = new double[width * height];
+        for (int c = 0; c < nChannels; c++) {
+            raster.getSamples(0, 0, width, height, c, values);
+            Stats current = null;
+            int currentLabel = -1;
+            for (int i = 0; i < values.length; i++) {
+                int label = labels[i];
+                if (label == 0) continue;
+                // Consecutive pixels mostly share their label
+                if (label != currentLabel) {
+                    currentLabel = label;
+                    current = tileStats.get(label);
+                    if (current == null) {
+                        current = new Stats(nChannels, nBins);
+                        tileStats.put(label, current);
+                    }
+                }
+                double value = values[i];
+                if (c == 0) current.n++;
+                current.sum[c] += value;
+                current.sumSquares[c] += value * value;
+                if (value < current.min[c]) current.min[c] = value;
+                if (value > current.max[c]) current.max[c] = value;
+                if (nBins > 0) {
+                    current.histograms[c].add((long) value);
+                }
+            }
+        }
+        return tileStats;
+    }
+}
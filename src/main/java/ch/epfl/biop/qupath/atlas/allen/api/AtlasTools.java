@@ -1,36 +1,58 @@
 package ch.epfl.biop.qupath.atlas.allen.api;
 
 import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import ch.epfl.biop.qupath.atlas.allen.utils.PackedGeometries;
+import ch.epfl.biop.qupath.atlas.allen.utils.RoiConverter;
+import ch.epfl.biop.qupath.atlas.allen.utils.RoiSetCache;
 import ch.epfl.biop.qupath.atlas.allen.utils.RoiSetLoader;
 import ij.gui.Roi;
+import ij.measure.ResultsTable;
 import javafx.scene.paint.Color;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import qupath.imagej.tools.IJTools;
 import qupath.lib.common.ColorTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.RotatedImageServer;
 import qupath.lib.measurements.MeasurementList;
-import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
 
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class AtlasTools {
@@ -44,7 +66,7 @@ public class AtlasTools {
     final static private String ALLEN_ONTOLOGY_FILENAME = "AllenMouseBrainOntology.json";
     final static private String ATLAS_ROISET_FILENAME = "ABBA-RoiSet.zip";
 
-    static private PathObject createAllenAnnotationHierarchy(List<PathObject> annotations) {
+    static private List<PathObject> createAllenAnnotationHierarchy(List<PathObject> annotations) {
 
         // Map the ID of the annotation to ease finding parents
         Map<Integer, PathObject> mappedAnnotations =
@@ -54,19 +76,29 @@ public class AtlasTools {
                                 Collectors.toMap(e -> (int) (e.getMeasurementList().getMeasurementValue("Allen ID")), e -> e)
                         );
 
+        // Children are grouped per parent and added in one call each, the tree is built detached from any hierarchy
+        List<PathObject> topAnnotations = new ArrayList<>();
+        Map<PathObject, List<PathObject>> children = new HashMap<>();
         mappedAnnotations.forEach((id, annotation) -> {
             PathObject parent = mappedAnnotations.get((int) annotation.getMeasurementList().getMeasurementValue("Parent Allen ID"));
             if (parent != null)
-                parent.addPathObject(annotation);
+                children.computeIfAbsent(parent, p -> new ArrayList<>()).add(annotation);
+            else
+                topAnnotations.add(annotation);
         });
+        children.forEach(PathObject::addPathObjects);
 
-        // Return just the root annotation from Allen Brain, ID 997
-        return mappedAnnotations.get(997);
+        // Return just the root annotation from Allen Brain, ID 997, or the roots of the imported subtrees
+        if (mappedAnnotations.containsKey(997)) {
+            return Collections.singletonList(mappedAnnotations.get(997));
+        }
+        return topAnnotations;
     }
 
-    static PathObject getWarpedAtlasRegions(ImageData imageData, boolean splitLeftRight) {
+    static List<PathObject> getWarpedAtlasRegions(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, IntPredicate regionIdFilter, double simplificationTolerance) {
 
-        List<PathObject> annotations = getFlattenedWarpedAtlasRegions(imageData, splitLeftRight); // TODO
+        List<PathObject> annotations = getFlattenedWarpedAtlasRegions(imageData, entry, ontology, splitLeftRight, regionIdFilter, simplificationTolerance); // TODO
+        if (annotations == null || annotations.isEmpty()) return Collections.emptyList();
         if (splitLeftRight) {
             List<PathObject> annotationsLeft = annotations
                     .stream()
@@ -78,28 +110,119 @@ public class AtlasTools {
                     .filter(po -> po.getPathClass().isDerivedFrom(QP.getPathClass("Right")))
                     .collect(Collectors.toList());
 
-            PathObject rootLeft = createAllenAnnotationHierarchy(annotationsLeft);
-            PathObject rootRight = createAllenAnnotationHierarchy(annotationsRight);
-            ROI rootFused = RoiTools.combineROIs(rootLeft.getROI(), rootRight.getROI(), RoiTools.CombineOp.ADD);
+            List<PathObject> roots = new ArrayList<>(createAllenAnnotationHierarchy(annotationsLeft));
+            roots.addAll(createAllenAnnotationHierarchy(annotationsRight));
+            ROI rootFused = roots.get(0).getROI();
+            for (int i = 1; i < roots.size(); i++) {
+                rootFused = RoiTools.combineROIs(rootFused, roots.get(i).getROI(), RoiTools.CombineOp.ADD);
+            }
             PathObject rootObject = PathObjects.createAnnotationObject(rootFused);
             rootObject.setName("Root");
-            rootObject.addPathObject(rootLeft);
-            rootObject.addPathObject(rootRight);
-            return rootObject; // TODO
+            rootObject.addPathObjects(roots);
+            return Collections.singletonList(rootObject); // TODO
         } else {
             return createAllenAnnotationHierarchy(annotations);
         }
 
     }
 
+    // Simplified version of a region, or of its part on one side, at the requested tolerance. The exact geometry is not kept
+    private static Geometry simplifyRegion(Geometry geometry, double tolerance) {
+        if (tolerance <= 0) return geometry;
+        Geometry simplified = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+        // Regions smaller than the tolerance vanish, they are kept exact
+        return simplified.isEmpty() ? geometry : PackedGeometries.pack(simplified);
+    }
+
+    /**
+     * Resolves ontology subtrees into a filter of the regions to import
+     *
+     * @param ontology the Allen ontology
+     * @param ontologyRoots acronyms or Allen IDs of the roots of the subtrees, e.g. "Isocortex" or "HPF"
+     * @return a filter accepting the Allen IDs of the roots and of all their descendants
+     * @throws IllegalArgumentException if one of the roots is not in the ontology
+     */
+    public static IntPredicate getSubtreesFilter(AllenOntologyJson ontology, Collection<String> ontologyRoots) {
+        int[] rootIndices = new int[ontologyRoots.size()];
+        int i = 0;
+        for (String root : ontologyRoots) {
+            rootIndices[i] = ontology.resolveIndex(root);
+            if (rootIndices[i] < 0) {
+                throw new IllegalArgumentException("Unknown region in the Allen ontology: " + root);
+            }
+            i++;
+        }
+        boolean[] selected = ontology.getSubtreesMask(rootIndices);
+        return id -> {
+            int index = ontology.getIndex(id);
+            return index >= 0 && selected[index];
+        };
+    }
+
+    /**
+     * Parses a comma separated list of regions, as entered by users
+     *
+     * @param regions e.g. "Isocortex, HPF"
+     * @return the list of region acronyms or IDs, empty if all regions should be imported
+     */
+    public static List<String> parseRegionList(String regions) {
+        List<String> list = new ArrayList<>();
+        if (regions == null) return list;
+        for (String region : regions.split(",")) {
+            if (!region.trim().isEmpty()) list.add(region.trim());
+        }
+        return list;
+    }
+
+    /**
+     * Gets the Allen ontology stored in the project folder by ABBA. The ontology is parsed once and shared.
+     *
+     * @param project the QuPath project containing ABBA results
+     * @return the ontology, or null if it could not be read
+     */
+    public static AllenOntologyJson getOntology(Project project) {
+        return AllenOntologyJson.getCachedOntologyFromFile(Paths.get(Projects.getBaseDirectory(project).getAbsolutePath(), ALLEN_ONTOLOGY_FILENAME).toFile());
+    }
+
+    /**
+     * @param entry a project entry
+     * @return true if ABBA exported a RoiSet for this entry
+     */
+    public static boolean hasAtlasRoiSet(ProjectImageEntry entry) {
+        return Files.exists(Paths.get(entry.getEntryPath().toString(), ATLAS_ROISET_FILENAME));
+    }
+
     public static List<PathObject> getFlattenedWarpedAtlasRegions(ImageData imageData, boolean splitLeftRight) {
         Project project = qupath.getProject();
+        return getFlattenedWarpedAtlasRegions(imageData, project.getEntry(imageData), getOntology(project), splitLeftRight);
+    }
 
-        // Get the project folder and get the JSON ontology
-        AllenOntologyJson ontology = AllenOntologyJson.getOntologyFromFile(Paths.get(Projects.getBaseDirectory(project).getAbsolutePath(), ALLEN_ONTOLOGY_FILENAME).toFile());
+    public static List<PathObject> getFlattenedWarpedAtlasRegions(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight) {
+        return getFlattenedWarpedAtlasRegions(imageData, entry, ontology, splitLeftRight, null);
+    }
 
-        // Loop through each ImageEntry
-        ProjectImageEntry entry = project.getEntry(imageData);
+    /**
+     * Converts the ABBA RoiSet of an entry into flat atlas region annotations, with the exact region outlines,
+     * see {@link #getFlattenedWarpedAtlasRegions(ImageData, ProjectImageEntry, AllenOntologyJson, boolean, IntPredicate, double)}
+     */
+    public static List<PathObject> getFlattenedWarpedAtlasRegions(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, IntPredicate regionIdFilter) {
+        return getFlattenedWarpedAtlasRegions(imageData, entry, ontology, splitLeftRight, regionIdFilter, 0);
+    }
+
+    /**
+     * Converts the ABBA RoiSet of an entry into flat atlas region annotations. Regions are split and simplified on
+     * their geometries, before any ROI is created: regions straddling the midline are simplified after the
+     * intersection, like all the others, so that every outline is within the tolerance of the exact one.
+     *
+     * @param imageData the image data of the entry
+     * @param entry the project entry, which contains the ABBA RoiSet
+     * @param ontology the Allen ontology, see {@link #getOntology(Project)}
+     * @param splitLeftRight whether to split regions in Left and Right hemispheres
+     * @param regionIdFilter if not null, only the regions whose Allen ID is accepted are decoded and converted, see {@link #getSubtreesFilter(AllenOntologyJson, Collection)}
+     * @param simplificationTolerance maximal distance, in pixels, between the outlines and the exact regions, 0 for the exact regions
+     * @return the region annotations, without hierarchy, or null if the entry has no RoiSet
+     */
+    public static List<PathObject> getFlattenedWarpedAtlasRegions(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, IntPredicate regionIdFilter, double simplificationTolerance) {
 
         Path roisetPath = Paths.get(entry.getEntryPath().toString(), ATLAS_ROISET_FILENAME);
         if (!Files.exists(roisetPath)) {
@@ -107,19 +230,98 @@ public class AtlasTools {
             return null;
         }
 
-        // Get all the ROIs and add them as PathAnnotations
-        List<Roi> rois = RoiSetLoader.openRoiSet(roisetPath.toAbsolutePath().toFile());
-        logger.info("Loading {} Allen Regions for {}", rois.size(), entry.getImageName());
+        List<RoiSetCache.Entry> regions = getAtlasRegionGeometries(imageData.getServer(), roisetPath.toFile(), regionIdFilter);
+        if (regions.size() < 2) {
+            logger.warn("No regions in {}", roisetPath);
+            return null;
+        }
+        logger.info("Loading {} Allen Regions for {}", regions.size(), entry.getImageName());
+
+        // The last two ROIs of ABBA RoiSets are the Left and Right hemispheres
+        Geometry left = regions.get(regions.size() - 2).geometry;
+        Geometry right = regions.get(regions.size() - 1).geometry;
+        List<RoiSetCache.Entry> atlasRegions = regions.subList(0, regions.size() - 2);
 
-        Roi left = rois.get(rois.size() - 2);
-        Roi right = rois.get(rois.size() - 1);
+        if (splitLeftRight) {
+            List<Hemisphere> sides = Arrays.asList(new Hemisphere(left, QP.getPathClass("Left")), new Hemisphere(right, QP.getPathClass("Right")));
+
+            // Regions are independent, only the ones straddling the midline need an actual intersection
+            return atlasRegions.parallelStream()
+                    .flatMap(roi -> sides.stream().map(side -> {
+                        Geometry part = side.split(roi.geometry);
+                        if (part == null) return null;
+                        return createRegionAnnotation(simplifyRegion(part, simplificationTolerance), ontology.getRegionFromId(Integer.parseInt(roi.name)), side.pathClass);
+                    }))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        } else {
+            return atlasRegions.parallelStream()
+                    .map(roi -> createRegionAnnotation(simplifyRegion(roi.geometry, simplificationTolerance), ontology.getRegionFromId(Integer.parseInt(roi.name)), null))
+                    .collect(Collectors.toList());
+        }
+    }
 
-        rois.remove(left);
-        rois.remove(right);
+    // Annotation of a region, with metadata acquired from the Ontology; side is the Left or Right class of split imports
+    private static PathObject createRegionAnnotation(Geometry geometry, AllenOntologyJson.AllenBrainRegion region, PathClass side) {
+        PathObject object = PathObjects.createAnnotationObject(GeometryTools.geometryToROI(geometry, ImagePlane.getDefaultPlane()));
+        object.setName(region.name);
+        object.getMeasurementList().putMeasurement("Allen ID", region.id);
+        object.getMeasurementList().putMeasurement("Parent Allen ID", region.parent_structure_id);
+        object.getMeasurementList().putMeasurement("Side", 0);
+        object.setPathClass(side == null ? QP.getPathClass(region.acronym) : QP.getDerivedPathClass(side, region.acronym));
+        object.setLocked(true);
+        Color c = Color.web(region.color_hex_triplet);
+        int color = ColorTools.makeRGB((int) Math.round(c.getRed() * 255), (int) Math.round(c.getGreen() * 255), (int) Math.round(c.getBlue() * 255));
+        object.setColorRGB(color);
+        return object;
+    }
+
+    /**
+     * Gets the geometries of the regions of an ABBA RoiSet, in the pixel coordinates of the image. The conversion of
+     * the ImageJ ROIs is cached in the entry folder (see {@link RoiSetCache}), so that only the first import of an entry
+     * decodes and converts the RoiSet.
+     *
+     * @param server the server of the image, which may be rotated
+     * @param roiSet the ABBA RoiSet zip file
+     * @param regionIdFilter if not null, only the regions whose Allen ID is accepted are returned
+     * @return the region names (Allen IDs) and geometries, in the order of the RoiSet, the last two being the hemispheres
+     */
+    static List<RoiSetCache.Entry> getAtlasRegionGeometries(ImageServer<?> server, File roiSet, IntPredicate regionIdFilter) {
+        AffineTransform transform = getRotationTransform(server);
+        String conversionKey = server instanceof RotatedImageServer ?
+                ((RotatedImageServer) server).getRotation() + " " + server.getWidth() + "x" + server.getHeight() : "NONE";
+
+        Predicate<String> nameFilter = regionIdFilter == null ? null : name -> {
+            try {
+                return regionIdFilter.test(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                return true;
+            }
+        };
+        List<RoiSetCache.Entry> cached = RoiSetCache.read(roiSet, conversionKey, nameFilter);
+        if (cached != null) {
+            logger.debug("Read {} regions from the RoiSet cache of {}", cached.size(), roiSet);
+            return cached;
+        }
+
+        List<Roi> rois = regionIdFilter == null ?
+                RoiSetLoader.openRoiSet(roiSet) :
+                RoiSetLoader.openRoiSetForRegions(roiSet, regionIdFilter);
 
-        // Rotation for rotated servers
-        ImageServer<?> server = imageData.getServer();
+        // Handles rotated image server: the rotation is applied while reading the coordinates
+        List<RoiSetCache.Entry> regions = rois.parallelStream()
+                .map(roi -> new RoiSetCache.Entry(roi.getName(), RoiConverter.toGeometry(roi, transform)))
+                .collect(Collectors.toList());
 
+        // Only complete RoiSets are cached, a filtered import does not decode the other regions
+        if (regionIdFilter == null && !regions.isEmpty()) {
+            RoiSetCache.write(roiSet, conversionKey, regions);
+        }
+        return regions;
+    }
+
+    // Rotation for rotated servers, null if the server is not rotated
+    private static AffineTransform getRotationTransform(ImageServer<?> server) {
         AffineTransform transform = null;
 
         if (server instanceof RotatedImageServer) {
@@ -145,83 +347,427 @@ public class AtlasTools {
                     System.err.println("Unknow rotation for rotated image server: "+ris.getRotation());
             }
         }
+        return transform;
+    }
+
+
+    /**
+     * One side of the brain, prepared so that many regions can be tested against it.
+     * Regions whose envelope does not reach this side are skipped without any test, and only the regions straddling
+     * the midline need an actual intersection.
+     */
+    private static class Hemisphere {
+        final Geometry geometry;
+        final PreparedGeometry prepared;
+        final Envelope envelope;
+        final PathClass pathClass;
+
+        Hemisphere(Geometry geometry, PathClass pathClass) {
+            this.geometry = geometry;
+            this.prepared = PreparedGeometryFactory.prepare(geometry);
+            this.envelope = geometry.getEnvelopeInternal();
+            this.pathClass = pathClass;
+        }
+
+        /**
+         * @param region the exact geometry of an atlas region
+         * @return the part of the region on this side, or null if it does not reach this side
+         */
+        Geometry split(Geometry region) {
+            if (!envelope.intersects(region.getEnvelopeInternal())) {
+                return null;
+            }
+            if (prepared.covers(region)) {
+                return region;
+            } else if (!prepared.intersects(region)) {
+                return null;
+            }
+            Geometry intersection = GeometryTools.attemptOperation(region, g -> g.intersection(geometry));
+            if (intersection.isEmpty() || intersection.getArea() == 0) return null;
+            return PackedGeometries.pack(intersection);
+        }
+    }
+
+    public static void loadWarpedAtlasAnnotations(ImageData imageData, boolean splitLeftRight) {
+        Project project = qupath.getProject();
+        loadWarpedAtlasAnnotations(imageData, project.getEntry(imageData), getOntology(project), splitLeftRight);
+    }
+
+    /**
+     * Imports only some subtrees of the ontology, see {@link #loadWarpedAtlasAnnotations(ImageData, ProjectImageEntry, AllenOntologyJson, boolean, Collection)}
+     *
+     * @param imageData the image data of the current entry
+     * @param splitLeftRight whether to split regions in Left and Right hemispheres
+     * @param ontologyRoots acronyms or Allen IDs of the regions to import with their descendants, all regions if empty
+     */
+    public static void loadWarpedAtlasAnnotations(ImageData imageData, boolean splitLeftRight, String... ontologyRoots) {
+        Project project = qupath.getProject();
+        loadWarpedAtlasAnnotations(imageData, project.getEntry(imageData), getOntology(project), splitLeftRight, Arrays.asList(ontologyRoots));
+    }
+
+    /**
+     * Imports the ABBA RoiSet of an entry into its image data. Does not rely on the current project nor on the GUI,
+     * so it can be used on several entries concurrently.
+     *
+     * @param imageData the image data of the entry, which receives the atlas annotations
+     * @param entry the project entry, which contains the ABBA RoiSet
+     * @param ontology the Allen ontology, see {@link #getOntology(Project)}
+     * @param splitLeftRight whether to split regions in Left and Right hemispheres
+     * @return true if atlas annotations were added
+     */
+    public static boolean loadWarpedAtlasAnnotations(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight) {
+        return loadWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, Collections.emptyList());
+    }
+
+    /**
+     * Imports the ABBA RoiSet of an entry into its image data, restricted to some subtrees of the ontology.
+     * Only the RoiSet entries of these regions are decoded and only this part of the hierarchy is built, e.g. for "Isocortex"
+     * the Isocortex annotation and all its descendants.
+     *
+     * @param imageData the image data of the entry, which receives the atlas annotations
+     * @param entry the project entry, which contains the ABBA RoiSet
+     * @param ontology the Allen ontology, see {@link #getOntology(Project)}
+     * @param splitLeftRight whether to split regions in Left and Right hemispheres
+     * @param ontologyRoots acronyms or Allen IDs of the regions to import with their descendants, all regions if empty
+     * @return true if atlas annotations were added
+     */
+    public static boolean loadWarpedAtlasAnnotations(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, Collection<String> ontologyRoots) {
+        return loadWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, ontologyRoots, 0);
+    }
+
+    /**
+     * Imports the ABBA RoiSet of an entry into its image data, with simplified region outlines.
+     * Simplified outlines are lighter to display and to handle. They replace the exact geometries, which are not kept:
+     * later tests against the regions, e.g. {@link AtlasRegionIndex}, use the imported outlines, as they would after
+     * reopening the image.
+     *
+     * @param imageData the image data of the entry, which receives the atlas annotations
+     * @param entry the project entry, which contains the ABBA RoiSet
+     * @param ontology the Allen ontology, see {@link #getOntology(Project)}
+     * @param splitLeftRight whether to split regions in Left and Right hemispheres
+     * @param ontologyRoots acronyms or Allen IDs of the regions to import with their descendants, all regions if empty
+     * @param simplificationTolerance maximal distance, in pixels, between the imported outlines and the exact regions.
+     *                                0 to import the exact regions
+     * @return true if atlas annotations were added
+     */
+    public static boolean loadWarpedAtlasAnnotations(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, Collection<String> ontologyRoots, double simplificationTolerance) {
+        List<PathObject> atlasRoots = createWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, ontologyRoots, simplificationTolerance);
+        if (atlasRoots.isEmpty()) return false;
+        addAtlasAnnotations(imageData.getHierarchy(), atlasRoots);
+        return true;
+    }
+
+    /**
+     * Builds the atlas annotation tree of an entry, without adding it to the hierarchy. This is the expensive part of
+     * the import, which can run outside of the GUI thread before {@link #addAtlasAnnotations(PathObjectHierarchy, List)}.
+     * See {@link #loadWarpedAtlasAnnotations(ImageData, ProjectImageEntry, AllenOntologyJson, boolean, Collection, double)}
+     * for the parameters.
+     *
+     * @return the roots of the atlas annotation tree, empty if the entry has no RoiSet
+     */
+    public static List<PathObject> createWarpedAtlasAnnotations(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, Collection<String> ontologyRoots, double simplificationTolerance) {
+        IntPredicate regionIdFilter = ontologyRoots.isEmpty() ? null : getSubtreesFilter(ontology, ontologyRoots);
+        List<PathObject> atlasRoots = getWarpedAtlasRegions(imageData, entry, ontology, splitLeftRight, regionIdFilter, simplificationTolerance);
+        if (!atlasRoots.isEmpty()) logAtlasMemory(entry, atlasRoots);
+        return atlasRoots;
+    }
+
+    /**
+     * Attaches atlas annotation trees to a hierarchy in bulk. The trees are added directly below the root object, as
+     * their structure is already known: no location based insertion is done for the thousands of regions, and listeners
+     * (viewers, measurement tables) get a single hierarchy change event.
+     *
+     * @param hierarchy the hierarchy which receives the annotations
+     * @param atlasRoots the roots of the trees, see {@link #createWarpedAtlasAnnotations(ImageData, ProjectImageEntry, AllenOntologyJson, boolean, Collection, double)}
+     */
+    public static void addAtlasAnnotations(PathObjectHierarchy hierarchy, List<PathObject> atlasRoots) {
+        PathObject root = hierarchy.getRootObject();
+        for (PathObject atlasRoot : atlasRoots) {
+            hierarchy.addPathObjectBelowParent(root, atlasRoot, false);
+        }
+        hierarchy.fireHierarchyChangedEvent(AtlasTools.class);
+    }
 
-        AffineTransform finalTransform = transform;
+    /**
+     * Re-imports the ABBA RoiSet of an entry into its image data, replacing only the atlas regions which changed since
+     * the previous import, see {@link AtlasAnnotationUpdater}. Unchanged regions keep their measurements and child
+     * objects, and only the objects of the changed regions are re-parented. Imports all regions if the image has no
+     * atlas annotations yet. See {@link #loadWarpedAtlasAnnotations(ImageData, ProjectImageEntry, AllenOntologyJson, boolean, Collection, double)}
+     * for the parameters.
+     *
+     * @return the number of regions which were replaced, added or removed
+     */
+    public static int reloadWarpedAtlasAnnotations(ImageData imageData, ProjectImageEntry entry, AllenOntologyJson ontology, boolean splitLeftRight, Collection<String> ontologyRoots, double simplificationTolerance) {
+        List<PathObject> atlasRoots = createWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, ontologyRoots, simplificationTolerance);
+        if (atlasRoots.isEmpty()) return 0;
+        return updateAtlasAnnotations(imageData.getHierarchy(), atlasRoots, ontology, ontologyRoots);
+    }
+
+    /**
+     * Updates the atlas annotations of a hierarchy with newly built trees, replacing only the regions which changed,
+     * see {@link AtlasAnnotationUpdater#update(PathObjectHierarchy, List, AllenOntologyJson, IntPredicate)}
+     *
+     * @param hierarchy the hierarchy which receives the annotations
+     * @param atlasRoots the roots of the trees, see {@link #createWarpedAtlasAnnotations(ImageData, ProjectImageEntry, AllenOntologyJson, boolean, Collection, double)}
+     * @param ontology the Allen ontology used for the import
+     * @param ontologyRoots the regions imported with their descendants, all regions if empty
+     * @return the number of regions which were replaced, added or removed
+     */
+    public static int updateAtlasAnnotations(PathObjectHierarchy hierarchy, List<PathObject> atlasRoots, AllenOntologyJson ontology, Collection<String> ontologyRoots) {
+        return prepareAtlasAnnotationsUpdate(AtlasAnnotationUpdater.snapshot(hierarchy), atlasRoots, ontology, ontologyRoots).apply();
+    }
+
+    /**
+     * Computes the update of the atlas annotations of a hierarchy from a snapshot taken with
+     * {@link AtlasAnnotationUpdater#snapshot(PathObjectHierarchy)}, so that it can run outside of the GUI thread, see
+     * {@link AtlasAnnotationUpdater#prepare(AtlasAnnotationUpdater.Snapshot, List, AllenOntologyJson, IntPredicate)}.
+     * See {@link #updateAtlasAnnotations(PathObjectHierarchy, List, AllenOntologyJson, Collection)} for the parameters.
+     *
+     * @return the update, to apply on the thread which owns the hierarchy with {@link AtlasAnnotationUpdater#apply()}
+     */
+    public static AtlasAnnotationUpdater prepareAtlasAnnotationsUpdate(AtlasAnnotationUpdater.Snapshot snapshot, List<PathObject> atlasRoots, AllenOntologyJson ontology, Collection<String> ontologyRoots) {
+        IntPredicate regionIdFilter = ontologyRoots.isEmpty() ? null : getSubtreesFilter(ontology, ontologyRoots);
+        return AtlasAnnotationUpdater.prepare(snapshot, atlasRoots, ontology, regionIdFilter);
+    }
 
-        List<PathObject> annotations = rois.stream().map(roi -> {
-            // Create the PathObject
+    /**
+     * Tags each detection of the current image with the deepest atlas region containing its centroid,
+     * see {@link #assignDetectionsToAtlasRegions(ImageData, AllenOntologyJson)}
+     *
+     * @param imageData the image data of the current entry, with imported atlas annotations
+     * @return the number of detections located in an atlas region
+     */
+    public static int assignDetectionsToAtlasRegions(ImageData imageData) {
+        return assignDetectionsToAtlasRegions(imageData, getOntology(qupath.getProject()));
+    }
 
-            //PathObject object = IJTools.convertToAnnotation( imp, imageData.getServer(), roi, 1, null );
-            PathObject object = PathObjects.createAnnotationObject(IJTools.convertToROI(roi, 0, 0, 1, null));
+    /**
+     * Tags each detection with the deepest atlas region containing its centroid, without changing the hierarchy.
+     * <p>
+     * The atlas regions are indexed once in an STR-tree of prepared geometries ({@link AtlasRegionIndex}), detections are
+     * then located in parallel. Each detection receives the measurements "Allen ID" and "Side" (0 if regions are not split,
+     * 1 for Left, 2 for Right). Detections outside all regions get NaN measurements. Names and classifications of the
+     * detections are left untouched.
+     *
+     * @param imageData the image data, with imported atlas annotations
+     * @param ontology the Allen ontology used for the import
+     * @return the number of detections located in an atlas region
+     */
+    public static int assignDetectionsToAtlasRegions(ImageData<?> imageData, AllenOntologyJson ontology) {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        AtlasRegionIndex index = new AtlasRegionIndex(hierarchy.getAnnotationObjects(), ontology);
+        Collection<PathObject> detections = hierarchy.getDetectionObjects();
+        if (index.size() == 0) {
+            logger.warn("No atlas regions found, were ABBA results imported?");
+            return 0;
+        }
 
-            // Handles rotated image server
-            if (finalTransform !=null) {
-                object = PathObjectTools.transformObject(object, finalTransform, true);
+        long start = System.currentTimeMillis();
+        int nAssigned = (int) detections.parallelStream().filter(detection -> {
+            ROI roi = PathObjectTools.getROI(detection, true);
+            AtlasRegionIndex.Region region = index.getDeepestRegion(roi.getCentroidX(), roi.getCentroidY());
+            MeasurementList ml = detection.getMeasurementList();
+            if (region == null) {
+                ml.putMeasurement("Allen ID", Double.NaN);
+                ml.putMeasurement("Side", Double.NaN);
+            } else {
+                ml.putMeasurement("Allen ID", region.getAllenId());
+                ml.putMeasurement("Side", region.getSide());
             }
+            ml.close();
+            return region != null;
+        }).count();
+
+        logger.info("Assigned {} of {} detections to {} atlas regions in {} ms", nAssigned, detections.size(), index.size(), System.currentTimeMillis() - start);
+        hierarchy.fireObjectMeasurementsChangedEvent(AtlasTools.class, detections);
+        return nAssigned;
+    }
 
-            // Add metadata to object as acquired from the Ontology
-            int object_id = Integer.parseInt(roi.getName());
-            // Get associated information
-            ch.epfl.biop.atlas.allen.AllenOntologyJson.AllenBrainRegion region = ontology.getRegionFromId(object_id);
-            object.setName(region.name);
-            object.getMeasurementList().putMeasurement("Allen ID", region.id);
-            object.getMeasurementList().putMeasurement("Parent Allen ID", region.parent_structure_id);
-            object.getMeasurementList().putMeasurement("Side", 0);
-            object.setPathClass(QP.getPathClass(region.acronym));
-            object.setLocked(true);
-            Color c = Color.web(region.color_hex_triplet);
-            int color = ColorTools.makeRGB((int) Math.round(c.getRed() * 255), (int) Math.round(c.getGreen() * 255), (int) Math.round(c.getBlue() * 255));
-            object.setColorRGB(color);
-            return object;
-
-        }).collect(Collectors.toList());
+    /**
+     * Counts the detections of the current image per atlas region and class, summed up the ontology,
+     * see {@link AtlasRegionAggregator}
+     *
+     * @param imageData the image data of the current entry, with imported atlas annotations
+     * @return one row per region and side, with areas, counts and densities
+     */
+    public static ResultsTable getAtlasRegionCounts(ImageData<BufferedImage> imageData) {
+        Project<BufferedImage> project = qupath.getProject();
+        return AtlasRegionAggregator.of(imageData, getOntology(project)).toResultsTable(project.getEntry(imageData).getImageName());
+    }
 
-        if (splitLeftRight) {
-            ROI leftROI = IJTools.convertToROI(left, 0, 0, 1, null);
-            ROI rightROI = IJTools.convertToROI(right, 0, 0, 1, null);
-            List<PathObject> splitObjects = new ArrayList<>();
-            for (PathObject annotation : annotations) {
-                ROI shapeLeft = RoiTools.combineROIs(leftROI, annotation.getROI(), RoiTools.CombineOp.INTERSECT);
-                if (!shapeLeft.isEmpty()) {
-                    PathObject objectLeft = PathObjects.createAnnotationObject(shapeLeft, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
-                    objectLeft.setName(annotation.getName());
-                    objectLeft.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Left"), annotation.getPathClass().getName()));
-                    objectLeft.setColorRGB(annotation.getColorRGB());
-                    objectLeft.setLocked(true);
-                    splitObjects.add(objectLeft);
-                }
-
-                ROI shapeRight = RoiTools.combineROIs(rightROI, annotation.getROI(), RoiTools.CombineOp.INTERSECT);
-                if (!shapeRight.isEmpty()) {
-                    PathObject objectRight = PathObjects.createAnnotationObject(shapeRight, annotation.getPathClass(), duplicateMeasurements(annotation.getMeasurementList()));
-                    objectRight.setName(annotation.getName());
-                    objectRight.setPathClass(QP.getDerivedPathClass(QP.getPathClass("Right"), annotation.getPathClass().getName()));
-                    objectRight.setColorRGB(annotation.getColorRGB());
-                    objectRight.setLocked(true);
-                    splitObjects.add(objectRight);
-                }
+    /**
+     * Selects all the annotations and detections of the current image which belong to a region or to its sub-regions,
+     * on both sides, see {@link #getObjectsUnderRegion(PathObjectHierarchy, AllenOntologyJson, String, String, boolean, boolean)}
+     *
+     * @param imageData the image data of the current entry, with imported atlas annotations
+     * @param acronymOrId the acronym or Allen ID of the region, e.g. "Isocortex"
+     * @return the number of selected objects
+     */
+    public static int selectObjectsUnderRegion(ImageData<?> imageData, String acronymOrId) {
+        return selectObjectsUnderRegion(imageData, acronymOrId, null);
+    }
+
+    /**
+     * Selects all the annotations and detections of the current image which belong to a region or to its sub-regions,
+     * see {@link #getObjectsUnderRegion(PathObjectHierarchy, AllenOntologyJson, String, String, boolean, boolean)}
+     *
+     * @param imageData the image data of the current entry, with imported atlas annotations
+     * @param acronymOrId the acronym or Allen ID of the region, e.g. "Isocortex"
+     * @param side "Left" or "Right" to select one hemisphere only, null for both
+     * @return the number of selected objects
+     */
+    public static int selectObjectsUnderRegion(ImageData<?> imageData, String acronymOrId, String side) {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        List<PathObject> objects = getObjectsUnderRegion(hierarchy, getOntology(qupath.getProject()), acronymOrId, side, true, true);
+        hierarchy.getSelectionModel().setSelectedObjects(objects, null);
+        return objects.size();
+    }
 
+    /**
+     * Gets all the objects which belong to a region or to its sub-regions.
+     * <p>
+     * The region of an object is its "Allen ID" measurement: atlas annotations have one, and detections get one with
+     * {@link #assignDetectionsToAtlasRegions(ImageData, AllenOntologyJson)}. Objects without it take the region of their
+     * closest parent which has one, e.g. detections resolved under atlas annotations. Belonging to the subtree is then a
+     * constant time test on the ontology ({@link AllenOntologyJson#isDescendantOrSelf(int, int)}) and objects are tested
+     * in parallel.
+     *
+     * @param hierarchy the hierarchy of an image with imported atlas annotations
+     * @param ontology the Allen ontology used for the import
+     * @param acronymOrId the acronym or Allen ID of the region, e.g. "Isocortex"
+     * @param includeAnnotations whether to return annotations
+     * @param includeDetections whether to return detections
+     * @return the objects of the region and its sub-regions, on both sides for split imports
+     * @throws IllegalArgumentException if the region is not in the ontology
+     */
+    public static List<PathObject> getObjectsUnderRegion(PathObjectHierarchy hierarchy, AllenOntologyJson ontology, String acronymOrId, boolean includeAnnotations, boolean includeDetections) {
+        return getObjectsUnderRegion(hierarchy, ontology, acronymOrId, null, includeAnnotations, includeDetections);
+    }
+
+    /**
+     * Gets the objects which belong to a region or to its sub-regions, on one side only if regions were split at
+     * import, see {@link #getObjectsUnderRegion(PathObjectHierarchy, AllenOntologyJson, String, boolean, boolean)}.
+     * <p>
+     * The side of an object is the one of the object giving its region: the Left or Right class of an atlas annotation,
+     * the "Side" measurement of a detection.
+     *
+     * @param hierarchy the hierarchy of an image with imported atlas annotations
+     * @param ontology the Allen ontology used for the import
+     * @param acronymOrId the acronym or Allen ID of the region, e.g. "Isocortex"
+     * @param side "Left" or "Right" to keep one hemisphere only, null for both
+     * @param includeAnnotations whether to return annotations
+     * @param includeDetections whether to return detections
+     * @return the objects of the region and its sub-regions on this side, none if regions were not split
+     * @throws IllegalArgumentException if the region is not in the ontology or if the side is neither Left nor Right
+     */
+    public static List<PathObject> getObjectsUnderRegion(PathObjectHierarchy hierarchy, AllenOntologyJson ontology, String acronymOrId, String side, boolean includeAnnotations, boolean includeDetections) {
+        int rootIndex = ontology.resolveIndex(acronymOrId);
+        if (rootIndex < 0) {
+            throw new IllegalArgumentException("Unknown region in the Allen ontology: " + acronymOrId);
+        }
+        int sideIndex;
+        if (side == null) sideIndex = -1;
+        else if (side.equalsIgnoreCase("Left")) sideIndex = AtlasRegionIndex.SIDE_LEFT;
+        else if (side.equalsIgnoreCase("Right")) sideIndex = AtlasRegionIndex.SIDE_RIGHT;
+        else throw new IllegalArgumentException("Unknown side, expected Left or Right: " + side);
+        List<PathObject> candidates = new ArrayList<>();
+        if (includeAnnotations) candidates.addAll(hierarchy.getAnnotationObjects());
+        if (includeDetections) candidates.addAll(hierarchy.getDetectionObjects());
+
+        // Parents are shared by many detections, their region and side are resolved once
+        Map<PathObject, Integer> parentIndices = new ConcurrentHashMap<>();
+        Map<PathObject, Integer> parentSides = new ConcurrentHashMap<>();
+        return candidates.parallelStream()
+                .filter(object -> {
+                    int index = getOntologyIndex(object, ontology, parentIndices);
+                    if (index < 0 || !ontology.isDescendantOrSelf(index, rootIndex)) return false;
+                    return sideIndex < 0 || getSide(object, parentSides) == sideIndex;
+                })
+                .collect(Collectors.toList());
+    }
+
+    // Side of the region of an object, see AtlasRegionIndex.SIDE_*, -1 if it is not in an atlas region
+    private static int getSide(PathObject object, Map<PathObject, Integer> parentSides) {
+        MeasurementList ml = object.getMeasurementList();
+        if (!Double.isNaN(ml.getMeasurementValue("Allen ID"))) {
+            if (object.isAnnotation()) {
+                PathClass pathClass = object.getPathClass();
+                if (pathClass == null) return AtlasRegionIndex.SIDE_NONE;
+                if (pathClass.isDerivedFrom(QP.getPathClass("Left"))) return AtlasRegionIndex.SIDE_LEFT;
+                if (pathClass.isDerivedFrom(QP.getPathClass("Right"))) return AtlasRegionIndex.SIDE_RIGHT;
+                return AtlasRegionIndex.SIDE_NONE;
             }
-            return splitObjects;
-        } else {
-            return annotations;
+            double side = ml.getMeasurementValue("Side");
+            return Double.isNaN(side) ? -1 : (int) side;
         }
+        PathObject parent = object.getParent();
+        if (parent == null || parent.isRootObject()) return -1;
+        Integer side = parentSides.get(parent);
+        if (side == null) {
+            side = getSide(parent, parentSides);
+            parentSides.put(parent, side);
+        }
+        return side;
     }
 
-    public static void loadWarpedAtlasAnnotations(ImageData imageData, boolean splitLeftRight) {
-        imageData.getHierarchy().addPathObject(getWarpedAtlasRegions(imageData, splitLeftRight));
-        imageData.getHierarchy().fireHierarchyChangedEvent(AtlasTools.class);
+    // Index of the region of an object in the ontology, -1 if it is not in an atlas region
+    private static int getOntologyIndex(PathObject object, AllenOntologyJson ontology, Map<PathObject, Integer> parentIndices) {
+        double id = object.getMeasurementList().getMeasurementValue("Allen ID");
+        if (!Double.isNaN(id)) return ontology.getIndex((int) id);
+        PathObject parent = object.getParent();
+        if (parent == null || parent.isRootObject()) return -1;
+        Integer index = parentIndices.get(parent);
+        if (index == null) {
+            index = getOntologyIndex(parent, ontology, parentIndices);
+            parentIndices.put(parent, index);
+        }
+        return index;
     }
 
-    private static MeasurementList duplicateMeasurements( MeasurementList measurements) {
-        MeasurementList list = MeasurementListFactory.createMeasurementList(measurements.size(), MeasurementList.MeasurementListType.GENERAL);
+    /**
+     * Measures the intensities of all the atlas regions of the current image in one pass over the pixels,
+     * see {@link AtlasRegionIntensities}
+     *
+     * @param imageData the image data of the current entry, with imported atlas annotations
+     * @param downsample the downsample at which to read the pixels
+     * @param percentiles the percentiles to measure, e.g. 50 for the median
+     * @return the number of region annotations measured
+     * @throws IOException if the pixels could not be read
+     */
+    public static int measureAtlasRegionIntensities(ImageData<BufferedImage> imageData, double downsample, double... percentiles) throws IOException {
+        return AtlasRegionIntensities.measure(imageData, getOntology(qupath.getProject()), downsample, percentiles);
+    }
+
+    /**
+     * Writes the label image of the atlas regions of the current image into a pyramidal OME-TIFF, rendered and written
+     * tile by tile, see {@link AtlasLabelImageServer}
+     *
+     * @param imageData the image data of the current entry, with imported atlas annotations
+     * @param file the OME-TIFF file to write
+     * @param allenIds true to label pixels with Allen IDs, false to use compact indices
+     * @param downsamples the resolution levels to write, 1, 4, 16 and 64 if empty
+     * @return false if the image has no atlas regions
+     * @throws IOException if the file could not be written
+     */
+    public static boolean exportAtlasLabelImage(ImageData<BufferedImage> imageData, File file, boolean allenIds, double... downsamples) throws IOException {
+        return AtlasLabelImageServer.write(imageData, getOntology(qupath.getProject()), file, allenIds, downsamples);
+    }
 
-        for (int i = 0; i < measurements.size(); i++) {
-            String name = measurements.getMeasurementName(i);
-            double value = measurements.getMeasurementValue(i);
-            list.addMeasurement(name, value);
+    // Atlas annotations stay in memory for the whole session, their footprint is worth checking when several images are open.
+    // The ROIs are the only copy of the region coordinates kept after the import
+    private static void logAtlasMemory(ProjectImageEntry entry, List<PathObject> atlasRoots) {
+        List<ROI> rois = new ArrayList<>();
+        long nVertices = 0;
+        for (PathObject root : atlasRoots) {
+            for (PathObject object : PathObjectTools.getFlattenedObjectList(root, null, true)) {
+                if (!object.hasROI()) continue;
+                rois.add(object.getROI());
+                nVertices += object.getROI().getNumPoints();
+            }
         }
-        return list;
+        // Both measured on the same ROIs, the unpacked size is the one of the same vertices stored as Coordinate objects
+        logger.info("Atlas annotations of {}: {} regions, {} vertices, {} kB of coordinate values before packing, {} kB after (object overhead not included)",
+                entry.getImageName(), rois.size(), nVertices, PackedGeometries.getUnpackedCoordinateBytes(rois) / 1024, PackedGeometries.getCoordinateBytes(rois) / 1024);
     }
 
 }
@@ -0,0 +1,270 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import ch.epfl.biop.qupath.transform.Warpy;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Accumulates the detections of ABBA registered sections into a 3D grid of the Allen CCFv3, one count per voxel and
+ * per detection class.
+ * <p>
+ * Detection centroids are mapped to the CCF with the inverse of the ABBA-Transform.json of their entry, as in
+ * appendCcfCoordinatesToDetections.groovy, then binned directly: no per detection table is ever written. Entries
+ * are read one at a time, so the memory used is the size of the grid times the number of classes, whatever the number
+ * of detections.
+ * <p>
+ * The result is written as a single gzipped NRRD volume of unsigned 32 bits counts, with the classes as first axis,
+ * which can be read by Fiji, 3D Slicer or pynrrd.
+ */
+public class CcfDensityVolume {
+
+    final static Logger logger = LoggerFactory.getLogger(CcfDensityVolume.class);
+
+    final static private String ATLAS_TRANSFORM_FILENAME = "ABBA-Transform.json";
+    final static private String UNCLASSIFIED = "Unclassified";
+
+    /**
+     * Extent of the Allen CCFv3 along the three axes of the ABBA coordinates, in millimeters
+     */
+    public static final double[] CCF_EXTENT_MM = {13.2, 8.0, 11.4};
+
+    private final double voxelSizeMM;
+    private final int[] dimensions;
+    private final int nVoxels;
+    private final Map<String, int[]> counts = new LinkedHashMap<>();
+
+    private long nDetections = 0;
+    private long nOutside = 0;
+
+    /**
+     * Creates an empty grid covering the whole CCFv3
+     *
+     * @param voxelSizeMicrons the size of the voxels, e.g. 25 or 50 microns
+     */
+    public CcfDensityVolume(double voxelSizeMicrons) {
+        this(voxelSizeMicrons, CCF_EXTENT_MM);
+    }
+
+    /**
+     * @param voxelSizeMicrons the size of the voxels
+     * @param extentMM the extent of the grid along each axis, in millimeters, starting at the CCF origin
+     */
+    public CcfDensityVolume(double voxelSizeMicrons, double[] extentMM) {
+        this.voxelSizeMM = voxelSizeMicrons / 1000.0;
+        this.dimensions = new int[3];
+        long n = 1;
+        for (int d = 0; d < 3; d++) {
+            dimensions[d] = (int) Math.ceil(extentMM[d] / voxelSizeMM);
+            n *= dimensions[d];
+        }
+        if (n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A voxel size of " + voxelSizeMicrons + " microns gives too many voxels (" + n + "), please use larger voxels");
+        }
+        this.nVoxels = (int) n;
+        logger.info("CCF grid of {}x{}x{} voxels, {} MB per class", dimensions[0], dimensions[1], dimensions[2], nVoxels * 4L / (1024 * 1024));
+    }
+
+    /**
+     * @param entry a project entry
+     * @return true if ABBA exported a transformation to the CCF for this entry
+     */
+    public static boolean hasAtlasTransform(ProjectImageEntry<?> entry) {
+        return Files.exists(Paths.get(entry.getEntryPath().toString(), ATLAS_TRANSFORM_FILENAME));
+    }
+
+    /**
+     * Adds the detections of an entry to the grid
+     *
+     * @param entry the entry, with an ABBA-Transform.json
+     * @param imageData the image data of the entry
+     * @return the number of detections added, i.e. located within the grid
+     */
+    public int addDetections(ProjectImageEntry<?> entry, ImageData<?> imageData) {
+        RealTransform transform = Warpy.getRealTransform(Paths.get(entry.getEntryPath().toString(), ATLAS_TRANSFORM_FILENAME).toFile());
+        if (!(transform instanceof InvertibleRealTransform)) {
+            logger.warn("No invertible ABBA transformation for {}", entry.getImageName());
+            return 0;
+        }
+        // The ABBA transformation maps the CCF to the pixels of the section
+        RealTransform pixelToCCF = ((InvertibleRealTransform) transform).inverse();
+        return addDetections(new ArrayList<>(imageData.getHierarchy().getDetectionObjects()), pixelToCCF);
+    }
+
+    /**
+     * Adds detections to the grid
+     *
+     * @param detections the detections of a section
+     * @param pixelToCCF maps the pixel coordinates of the section to the CCF, in millimeters
+     * @return the number of detections located within the grid
+     */
+    public int addDetections(List<PathObject> detections, RealTransform pixelToCCF) {
+        // Map the centroids in parallel, RealTransforms are not thread safe so each chunk gets a copy
+        int[] voxels = new int[detections.size()];
+        int chunkSize = 4096;
+        int nChunks = (voxels.length + chunkSize - 1) / chunkSize;
+        IntStream.range(0, nChunks).parallel().forEach(chunk -> {
+            RealTransform transform = pixelToCCF.copy();
+            RealPoint point = new RealPoint(3);
+            for (int i = chunk * chunkSize; i < Math.min(voxels.length, (chunk + 1) * chunkSize); i++) {
+                ROI roi = PathObjectTools.getROI(detections.get(i), true);
+                point.setPosition(roi.getCentroidX(), 0);
+                point.setPosition(roi.getCentroidY(), 1);
+                point.setPosition(0, 2);
+                transform.apply(point, point);
+                voxels[i] = getVoxelIndex(point.getDoublePosition(0), point.getDoublePosition(1), point.getDoublePosition(2));
+            }
+        });
+
+        int nAdded = 0;
+        for (int i = 0; i < voxels.length; i++) {
+            if (voxels[i] < 0) continue;
+            PathObject detection = detections.get(i);
+            String className = detection.getPathClass() == null ? UNCLASSIFIED : detection.getPathClass().toString();
+            counts.computeIfAbsent(className, name -> new int[nVoxels])[voxels[i]]++;
+            nAdded++;
+        }
+        nDetections += nAdded;
+        nOutside += voxels.length - nAdded;
+        return nAdded;
+    }
+
+    private int getVoxelIndex(double x, double y, double z) {
+        int i = (int) Math.floor(x / voxelSizeMM);
+        int j = (int) Math.floor(y / voxelSizeMM);
+        int k = (int) Math.floor(z / voxelSizeMM);
+        if (i < 0 || j < 0 || k < 0 || i >= dimensions[0] || j >= dimensions[1] || k >= dimensions[2]) return -1;
+        return (k * dimensions[1] + j) * dimensions[0] + i;
+    }
+
+    /**
+     * @return the number of voxels along x, y and z
+     */
+    public int[] getDimensions() {
+        return dimensions.clone();
+    }
+
+    /**
+     * @return the classes of the detections added so far, in the order of the first axis of the volume
+     */
+    public List<String> getClassNames() {
+        return new ArrayList<>(counts.keySet());
+    }
+
+    /**
+     * @param className a detection class, "Unclassified" for detections without class
+     * @return the counts of this class, x being the fastest axis, or null if no detection of this class was added
+     */
+    public int[] getCounts(String className) {
+        return counts.get(className);
+    }
+
+    /**
+     * Writes the counts as a gzipped NRRD volume, axes being class, x, y and z. The classes are listed in the "classes"
+     * field of the header. Voxels are in millimeters of the CCF.
+     *
+     * @param file the .nrrd file to write
+     * @throws IOException if the file could not be written
+     */
+    public void write(File file) throws IOException {
+        List<String> classNames = getClassNames();
+        if (classNames.isEmpty()) {
+            throw new IOException("No detection in the CCF grid, nothing to write");
+        }
+        int nClasses = classNames.size();
+        int[][] classCounts = new int[nClasses][];
+        for (int c = 0; c < nClasses; c++) classCounts[c] = counts.get(classNames.get(c));
+
+        StringBuilder header = new StringBuilder();
+        header.append("NRRD0004\n");
+        header.append("# Detection counts per class in the Allen CCFv3, exported from QuPath\n");
+        header.append("type: uint32\n");
+        header.append("dimension: 4\n");
+        header.append("sizes: ").append(nClasses).append(' ').append(dimensions[0]).append(' ').append(dimensions[1]).append(' ').append(dimensions[2]).append('\n');
+        header.append("kinds: list domain domain domain\n");
+        header.append("space dimension: 3\n");
+        header.append(String.format("space directions: none (%1$s,0,0) (0,%1$s,0) (0,0,%1$s)\n", voxelSizeMM));
+        header.append("space origin: (0,0,0)\n");
+        header.append("space units: \"mm\" \"mm\" \"mm\"\n");
+        header.append("endian: big\n");
+        header.append("encoding: gzip\n");
+        header.append("classes:=").append(String.join(";", classNames)).append('\n');
+        header.append('\n');
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out, 1 << 16), 1 << 16));
+            // The class is the fastest axis
+            for (int v = 0; v < nVoxels; v++) {
+                for (int c = 0; c < nClasses; c++) {
+                    data.writeInt(classCounts[c][v]);
+                }
+            }
+            data.close();
+        }
+        logger.info("Wrote {} detections in {} classes to {}, {} detections were outside of the grid", nDetections, nClasses, file, nOutside);
+    }
+
+    /**
+     * Accumulates the detections of all the entries of a project which have an ABBA transformation, one entry at a time,
+     * and writes the volume
+     *
+     * @param project the ABBA project
+     * @param voxelSizeMicrons the size of the voxels
+     * @param file the .nrrd file to write
+     * @return the volume
+     * @throws IOException if the file could not be written
+     */
+    public static CcfDensityVolume exportProject(Project<BufferedImage> project, double voxelSizeMicrons, File file) throws IOException {
+        CcfDensityVolume volume = new CcfDensityVolume(voxelSizeMicrons);
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            if (!entry.hasImageData() || !hasAtlasTransform(entry)) continue;
+            long start = System.currentTimeMillis();
+            // A failing entry is skipped, the voxels accumulated from the others are still written
+            ImageData<BufferedImage> imageData = null;
+            try {
+                imageData = entry.readImageData();
+                int nAdded = volume.addDetections(entry, imageData);
+                logger.info("Added {} detections of {} in {} ms", nAdded, entry.getImageName(), System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                logger.error("Could not add the detections of " + entry.getImageName() + " to the density volume", e);
+            } finally {
+                if (imageData != null) close(imageData, entry);
+            }
+        }
+        volume.write(file);
+        return volume;
+    }
+
+    private static void close(ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry) {
+        try {
+            imageData.getServer().close();
+        } catch (Exception e) {
+            logger.warn("Could not close the server of " + entry.getImageName(), e);
+        }
+    }
+}
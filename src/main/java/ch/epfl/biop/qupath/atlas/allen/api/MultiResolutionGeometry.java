@@ -0,0 +1,172 @@
+package ch.epfl.biop.qupath.atlas.allen.api;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * An atlas region geometry with simplified versions at increasing tolerances.
+ * <p>
+ * ABBA regions have one vertex per pixel of the atlas outline at full resolution, which makes every containment and
+ * intersection test expensive. A simplified version is never further than its tolerance from the exact geometry,
+ * so eroding and dilating it by the tolerance gives an inner and an outer band with few vertices: anything inside the
+ * inner band is inside the region, anything outside the outer band is outside. The exact geometry is only needed
+ * for what falls between the two, i.e. close to the region boundary.
+ * <p>
+ * Simplified versions and bands are computed lazily, on first use: creating an instance is free and a level costs
+ * nothing until a test needs it. Instances can be shared between threads.
+ */
+public class MultiResolutionGeometry {
+
+    /**
+     * Default simplification tolerances, in pixels of the full resolution image
+     */
+    public static final double[] DEFAULT_TOLERANCES = {1, 4, 16, 64};
+
+    // The bands are slightly wider than the tolerance to absorb rounding
+    private static final double BAND_MARGIN = 1.01;
+
+    private final Geometry exact;
+    private final double[] tolerances;
+    private final Geometry[] simplified;
+    private final PreparedGeometry[] inner;
+    private final PreparedGeometry[] outer;
+    private PreparedGeometry preparedExact;
+    private volatile PreparedGeometry preparedExactForQueries;
+    // Inner and outer bands used by contains(), empty if the region is too small to be simplified
+    private volatile PreparedGeometry[] rejectionBands;
+
+    public MultiResolutionGeometry(Geometry exact) {
+        this(exact, DEFAULT_TOLERANCES);
+    }
+
+    /**
+     * @param exact the full resolution geometry
+     * @param tolerances increasing simplification tolerances, in pixels
+     */
+    public MultiResolutionGeometry(Geometry exact, double[] tolerances) {
+        this.exact = exact;
+        this.tolerances = tolerances.clone();
+        this.simplified = new Geometry[tolerances.length];
+        this.inner = new PreparedGeometry[tolerances.length];
+        this.outer = new PreparedGeometry[tolerances.length];
+    }
+
+    public Geometry getExact() {
+        return exact;
+    }
+
+    public synchronized PreparedGeometry getPreparedExact() {
+        if (preparedExact == null) {
+            preparedExact = PreparedGeometryFactory.prepare(exact);
+        }
+        return preparedExact;
+    }
+
+    /**
+     * @param maxTolerance the maximal acceptable distance to the exact geometry, in pixels
+     * @return the most simplified version within this tolerance, the exact geometry if there is none
+     */
+    public Geometry getSimplified(double maxTolerance) {
+        int level = getLevel(maxTolerance);
+        return level < 0 ? exact : getSimplifiedLevel(level);
+    }
+
+    /**
+     * @param level index of the simplification level
+     * @return the simplified geometry of this level, computed on first use
+     */
+    public synchronized Geometry getSimplifiedLevel(int level) {
+        if (simplified[level] == null) {
+            // Simplifying the previous level is much cheaper, the errors of the successive steps add up to the tolerance of the level
+            Geometry previous = level == 0 ? exact : getSimplifiedLevel(level - 1);
+            Geometry geometry = TopologyPreservingSimplifier.simplify(previous, tolerances[level] - (level == 0 ? 0 : tolerances[level - 1]));
+            simplified[level] = geometry.isEmpty() ? previous : geometry;
+        }
+        return simplified[level];
+    }
+
+    /**
+     * @param maxTolerance the maximal acceptable distance to the exact geometry, in pixels
+     * @return the index of the coarsest level within this tolerance, or -1 if none is
+     */
+    public int getLevel(double maxTolerance) {
+        int level = -1;
+        for (int i = 0; i < tolerances.length; i++) {
+            if (tolerances[i] <= maxTolerance) level = i;
+        }
+        return level;
+    }
+
+    /**
+     * Chooses a level for quick rejection tests: the coarsest one whose tolerance stays small compared to the region
+     *
+     * @return the index of the level, or -1 if the region is too small to be simplified
+     */
+    public int getRejectionLevel() {
+        Envelope envelope = exact.getEnvelopeInternal();
+        return getLevel(Math.min(envelope.getWidth(), envelope.getHeight()) / 20);
+    }
+
+    public double getTolerance(int level) {
+        return tolerances[level];
+    }
+
+    /**
+     * @param level index of the simplification level
+     * @return a prepared geometry fully contained in the exact geometry
+     */
+    public synchronized PreparedGeometry getInner(int level) {
+        if (inner[level] == null) {
+            inner[level] = PreparedGeometryFactory.prepare(getSimplifiedLevel(level).buffer(-tolerances[level] * BAND_MARGIN));
+        }
+        return inner[level];
+    }
+
+    /**
+     * @param level index of the simplification level
+     * @return a prepared geometry fully containing the exact geometry
+     */
+    public synchronized PreparedGeometry getOuter(int level) {
+        if (outer[level] == null) {
+            outer[level] = PreparedGeometryFactory.prepare(getSimplifiedLevel(level).buffer(tolerances[level] * BAND_MARGIN));
+        }
+        return outer[level];
+    }
+
+    /**
+     * Containment test which only uses the exact geometry close to the boundary. Points on the boundary are inside.
+     *
+     * @param point a point geometry
+     * @return true if the point is inside the exact geometry
+     */
+    public boolean contains(Geometry point) {
+        PreparedGeometry[] bands = rejectionBands;
+        if (bands == null) {
+            synchronized (this) {
+                if (rejectionBands == null) {
+                    int level = getRejectionLevel();
+                    rejectionBands = level < 0 ? new PreparedGeometry[0] : new PreparedGeometry[]{getInner(level), getOuter(level)};
+                }
+                bands = rejectionBands;
+            }
+        }
+        if (bands.length == 2) {
+            if (bands[0].intersects(point)) return true;
+            if (!bands[1].intersects(point)) return false;
+        }
+        return getExactForQueries().intersects(point);
+    }
+
+    // Lock free access for the hot path of contains(), once prepared
+    private PreparedGeometry getExactForQueries() {
+        PreparedGeometry prepared = preparedExactForQueries;
+        if (prepared == null) {
+            prepared = getPreparedExact();
+            preparedExactForQueries = prepared;
+        }
+        return prepared;
+    }
+}
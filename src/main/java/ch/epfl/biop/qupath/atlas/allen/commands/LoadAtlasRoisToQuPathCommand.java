@@ -1,13 +1,22 @@
 package ch.epfl.biop.qupath.atlas.allen.commands;
 
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasAnnotationUpdater;
 import ch.epfl.biop.qupath.atlas.allen.api.AtlasTools;
+import javafx.application.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
 import qupath.lib.plugins.AbstractPlugin;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.util.List;
+import java.util.concurrent.FutureTask;
 
 public class LoadAtlasRoisToQuPathCommand implements Runnable {
     private static String title = "Load Allen Brain RoiSets for currently open Image";
@@ -19,6 +28,8 @@ public class LoadAtlasRoisToQuPathCommand implements Runnable {
     final static private String ATLAS_ROISET_FILENAME = "ABBA-RoiSet.zip";
 
     private boolean splitLeftRight;
+    private List<String> ontologyRoots;
+    private double simplificationTolerance;
     private boolean doRun;
 
     //LoadAtlasRoisToQuPathCommand
@@ -43,13 +54,54 @@ public class LoadAtlasRoisToQuPathCommand implements Runnable {
                 return;
         }
 
+        String regions = Dialogs.showInputDialog("Load Allen Brain RoiSets into Image",
+                "Regions to load with all their sub-regions, as comma separated acronyms or IDs (e.g. Isocortex, HPF).\nLeave empty to load all regions.", "");
+        if (regions == null) {
+            doRun = false;
+            return;
+        }
+        ontologyRoots = AtlasTools.parseRegionList(regions);
+
+        Double tolerance = Dialogs.showInputDialog("Load Allen Brain RoiSets into Image",
+                "Simplification of the region outlines, in pixels (0 to keep the exact outlines)", 0.0);
+        if (tolerance == null) {
+            doRun = false;
+            return;
+        }
+        simplificationTolerance = Math.max(0, tolerance);
+
         this.qupath = qupath;
     }
 
     public void run() {
         if (doRun) {
             ImageData imageData = qupath.getImageData();
-            AtlasTools.loadWarpedAtlasAnnotations(imageData, splitLeftRight);
+            Project project = qupath.getProject();
+            ProjectImageEntry entry = project.getEntry(imageData);
+            AllenOntologyJson ontology = AtlasTools.getOntology(project);
+
+            // The annotation tree and the changes to the existing one are computed in the background, only applying them
+            // to the hierarchy happens on the GUI thread. If regions were already imported, only the ones which changed are replaced
+            Thread importThread = new Thread(() -> {
+                try {
+                    List<PathObject> atlasRoots = AtlasTools.createWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, ontologyRoots, simplificationTolerance);
+                    if (!atlasRoots.isEmpty()) {
+                        // The existing annotations are captured on the GUI thread, apply() checks they did not move in the meantime
+                        FutureTask<AtlasAnnotationUpdater.Snapshot> snapshot = new FutureTask<>(() -> AtlasAnnotationUpdater.snapshot(imageData.getHierarchy()));
+                        Platform.runLater(snapshot);
+                        AtlasAnnotationUpdater update = AtlasTools.prepareAtlasAnnotationsUpdate(snapshot.get(), atlasRoots, ontology, ontologyRoots);
+                        Platform.runLater(update::apply);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Platform.runLater(() -> Dialogs.showErrorMessage(title, e.getMessage()));
+                } catch (Exception e) {
+                    // Anything else would silently end the import thread
+                    logger.error("Could not import ABBA RoiSet", e);
+                    Platform.runLater(() -> Dialogs.showErrorMessage(title, "Could not import ABBA RoiSet: " + e.getMessage()));
+                }
+            }, "abba-import");
+            importThread.setDaemon(true);
+            importThread.start();
         }
     }
 
@@ -0,0 +1,188 @@
+package ch.epfl.biop.qupath.atlas.allen.commands;
+
+import ch.epfl.biop.atlas.allen.AllenOntologyJson;
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasAnnotationUpdater;
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasTools;
+import javafx.application.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports the ABBA RoiSets of all the entries of the current project, replacing "Run for project" on the
+ * importABBAResults script.
+ * <p>
+ * Entries are processed concurrently by a bounded pool (QuPath's number of parallel threads preference), they all share
+ * the same ontology and each one is saved as soon as it is done. The entry currently opened in the viewer is imported
+ * in place and is left for the user to save.
+ */
+public class LoadAtlasRoisToQuPathProjectCommand implements Runnable {
+    private static String title = "Load Allen Brain RoiSets for all images of the project";
+
+    final static Logger logger = LoggerFactory.getLogger(LoadAtlasRoisToQuPathProjectCommand.class);
+    private QuPathGUI qupath;
+
+    private boolean splitLeftRight;
+    private List<String> ontologyRoots;
+    private double simplificationTolerance;
+    private boolean doRun;
+
+    public LoadAtlasRoisToQuPathProjectCommand(final QuPathGUI qupath) {
+        String splitMode =
+                Dialogs.showChoiceDialog(title,
+                        "This will load the RoiSets exported by the Allen Brain Alignment tool into all images of the project.\nContinue?", new String[]{"Split Left and Right Regions", "Do not split"}, "Do not split");
+
+        if (splitMode == null) {
+            // cancelled
+            doRun = false;
+            return;
+        }
+        splitLeftRight = splitMode.equals("Split Left and Right Regions");
+
+        String regions = Dialogs.showInputDialog(title,
+                "Regions to load with all their sub-regions, as comma separated acronyms or IDs (e.g. Isocortex, HPF).\nLeave empty to load all regions.", "");
+        if (regions == null) {
+            doRun = false;
+            return;
+        }
+        ontologyRoots = AtlasTools.parseRegionList(regions);
+
+        Double tolerance = Dialogs.showInputDialog(title,
+                "Simplification of the region outlines, in pixels (0 to keep the exact outlines)", 0.0);
+        if (tolerance == null) {
+            doRun = false;
+            return;
+        }
+        simplificationTolerance = Math.max(0, tolerance);
+        doRun = true;
+
+        this.qupath = qupath;
+    }
+
+    public void run() {
+        if (!doRun) return;
+
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null) {
+            Dialogs.showErrorMessage(title, "No project open");
+            return;
+        }
+
+        AllenOntologyJson ontology = AtlasTools.getOntology(project);
+        if (ontology == null) {
+            Dialogs.showErrorMessage(title, "Could not read the Allen ontology from the project folder");
+            return;
+        }
+        try {
+            AtlasTools.getSubtreesFilter(ontology, ontologyRoots);
+        } catch (IllegalArgumentException e) {
+            Dialogs.showErrorMessage(title, e.getMessage());
+            return;
+        }
+
+        // The opened image is imported in place, as reading and saving it from disk would overwrite the viewer's data
+        ImageData<BufferedImage> openImageData = qupath.getImageData();
+        ProjectImageEntry<BufferedImage> openEntry = openImageData == null ? null : project.getEntry(openImageData);
+        boolean importOpenEntry = openEntry != null && AtlasTools.hasAtlasRoiSet(openEntry);
+
+        List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            if (!entry.equals(openEntry) && AtlasTools.hasAtlasRoiSet(entry)) entries.add(entry);
+        }
+
+        int nThreads = Math.max(1, Math.min(PathPrefs.numCommandThreadsProperty().get(), entries.size()));
+        logger.info("Importing ABBA RoiSets into {} entries with {} threads", entries.size(), nThreads);
+
+        // Wait for the workers in the background so that the GUI stays responsive
+        Thread importThread = new Thread(() -> {
+            // A failure on the opened image must not prevent the import into the other entries
+            if (importOpenEntry) {
+                try {
+                    importOpenEntry(openImageData, openEntry, ontology);
+                } catch (Exception e) {
+                    logger.error("Could not import ABBA RoiSet into " + openEntry.getImageName(), e);
+                    Platform.runLater(() -> Dialogs.showErrorNotification(title, "Could not import ABBA RoiSet into " + openEntry.getImageName() + ": " + e.getMessage()));
+                }
+            }
+            importEntries(entries, ontology, nThreads);
+        }, "abba-project-import");
+        importThread.setDaemon(true);
+        importThread.start();
+    }
+
+    // Builds the annotations and the update in the background, only applying it to the opened image happens on the GUI thread
+    private void importOpenEntry(ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry, AllenOntologyJson ontology) throws Exception {
+        List<PathObject> atlasRoots = AtlasTools.createWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, ontologyRoots, simplificationTolerance);
+        if (!atlasRoots.isEmpty()) {
+            // The existing annotations are captured on the GUI thread, apply() checks they did not move in the meantime
+            FutureTask<AtlasAnnotationUpdater.Snapshot> snapshot = new FutureTask<>(() -> AtlasAnnotationUpdater.snapshot(imageData.getHierarchy()));
+            Platform.runLater(snapshot);
+            AtlasAnnotationUpdater update = AtlasTools.prepareAtlasAnnotationsUpdate(snapshot.get(), atlasRoots, ontology, ontologyRoots);
+            Platform.runLater(update::apply);
+        }
+    }
+
+    private void importEntries(List<ProjectImageEntry<BufferedImage>> entries, AllenOntologyJson ontology, int nThreads) {
+        long start = System.currentTimeMillis();
+        AtomicInteger nImported = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                futures.add(pool.submit(() -> {
+                    long entryStart = System.currentTimeMillis();
+                    ImageData<BufferedImage> imageData = null;
+                    try {
+                        imageData = entry.readImageData();
+                        if (AtlasTools.reloadWarpedAtlasAnnotations(imageData, entry, ontology, splitLeftRight, ontologyRoots, simplificationTolerance) > 0) {
+                            entry.saveImageData(imageData);
+                            nImported.incrementAndGet();
+                            logger.info("Imported or updated ABBA RoiSet of {} in {} ms", entry.getImageName(), System.currentTimeMillis() - entryStart);
+                        }
+                    } catch (Exception e) {
+                        logger.error("Could not import ABBA RoiSet into " + entry.getImageName(), e);
+                    } finally {
+                        // The reader is closed even if the import or the save failed
+                        if (imageData != null) close(imageData, entry);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            logger.error("ABBA project import interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        logger.info("Imported or updated {} of {} ABBA RoiSets in {} s", nImported.get(), entries.size(), TimeUnit.MILLISECONDS.toSeconds(duration));
+        Platform.runLater(() -> Dialogs.showInfoNotification(title, "Imported or updated " + nImported.get() + " of " + entries.size() + " ABBA RoiSets"));
+    }
+
+    private static void close(ImageData<BufferedImage> imageData, ProjectImageEntry<BufferedImage> entry) {
+        try {
+            imageData.getServer().close();
+        } catch (Exception e) {
+            logger.warn("Could not close the server of " + entry.getImageName(), e);
+        }
+    }
+
+}
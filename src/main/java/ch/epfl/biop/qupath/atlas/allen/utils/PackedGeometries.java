@@ -0,0 +1,141 @@
+package ch.epfl.biop.qupath.atlas.allen.utils;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.locationtech.jts.geom.util.GeometryTransformer;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Collection;
+
+/**
+ * Compact storage of read-only atlas geometries.
+ * <p>
+ * JTS geometries store each vertex as a Coordinate object, i.e. three doubles plus an object header and a reference,
+ * around 48 bytes. The regions of an atlas section have hundreds of thousands of vertices and are never edited, so
+ * they are stored as packed float sequences (x and y only, 8 bytes per vertex). Packed sequences are immutable in
+ * practice and only expand to Coordinate objects on demand, in a cache which the garbage collector can reclaim.
+ * Single precision keeps sub-pixel accuracy for images up to millions of pixels wide.
+ */
+public class PackedGeometries {
+
+    // Values of a Coordinate object: three doubles
+    final static private int COORDINATE_VALUE_BYTES = 24;
+
+    final static private GeometryFactory PACKED_FACTORY = new GeometryFactory(PackedCoordinateSequenceFactory.FLOAT_FACTORY);
+
+    /**
+     * @return a geometry factory creating packed float coordinate sequences, e.g. for a WKBReader
+     */
+    public static GeometryFactory getFactory() {
+        return PACKED_FACTORY;
+    }
+
+    /**
+     * @param geometry a geometry
+     * @return the same geometry with 2D packed float coordinate sequences, or the geometry itself if it is already packed
+     */
+    public static Geometry pack(Geometry geometry) {
+        if (geometry == null || isPacked(geometry)) return geometry;
+        return new GeometryTransformer() {
+            @Override
+            protected CoordinateSequence transformCoordinates(CoordinateSequence coords, Geometry parent) {
+                CoordinateSequence packed = PackedCoordinateSequenceFactory.FLOAT_FACTORY.create(coords.size(), 2);
+                for (int i = 0; i < coords.size(); i++) {
+                    packed.setOrdinate(i, 0, coords.getX(i));
+                    packed.setOrdinate(i, 1, coords.getY(i));
+                }
+                return packed;
+            }
+        }.transform(geometry);
+    }
+
+    private static boolean isPacked(Geometry geometry) {
+        boolean[] packed = {true};
+        geometry.apply(new CoordinateSequenceFilter() {
+            @Override
+            public void filter(CoordinateSequence seq, int i) {
+                if (!(seq instanceof PackedCoordinateSequence.Float)) packed[0] = false;
+            }
+
+            @Override
+            public boolean isDone() {
+                return !packed[0];
+            }
+
+            @Override
+            public boolean isGeometryChanged() {
+                return false;
+            }
+        });
+        return packed[0];
+    }
+
+    /**
+     * Counts the bytes of the coordinate values stored by a geometry: 4 per ordinate for packed float sequences, 8 for
+     * packed double sequences, and the three doubles of each Coordinate object otherwise. Object headers and references
+     * are not included, this is a lower bound of the memory retained by the coordinates, not a measurement of it.
+     *
+     * @param geometry a geometry
+     * @return the number of bytes of its coordinate values
+     */
+    public static long getCoordinateBytes(Geometry geometry) {
+        long[] bytes = {0};
+        geometry.apply(new CoordinateSequenceFilter() {
+            @Override
+            public void filter(CoordinateSequence seq, int i) {
+                // Called once per coordinate
+                if (seq instanceof PackedCoordinateSequence.Float) bytes[0] += 4L * seq.getDimension();
+                else if (seq instanceof PackedCoordinateSequence.Double) bytes[0] += 8L * seq.getDimension();
+                else bytes[0] += COORDINATE_VALUE_BYTES;
+            }
+
+            @Override
+            public boolean isDone() {
+                return false;
+            }
+
+            @Override
+            public boolean isGeometryChanged() {
+                return false;
+            }
+        });
+        return bytes[0];
+    }
+
+    /**
+     * Counts the bytes of the coordinate values stored by ROIs, see {@link #getCoordinateBytes(Geometry)}. Polygon ROIs
+     * store their vertices in two float arrays, the others in their geometry.
+     *
+     * @param rois ROIs
+     * @return the number of bytes of their coordinate values
+     */
+    public static long getCoordinateBytes(Collection<ROI> rois) {
+        long bytes = 0;
+        for (ROI roi : rois) {
+            if (roi instanceof PolygonROI) bytes += 8L * roi.getNumPoints();
+            else bytes += getCoordinateBytes(roi.getGeometry());
+        }
+        return bytes;
+    }
+
+    /**
+     * Counts the bytes the coordinate values of ROIs take as Coordinate objects, i.e. before packing, for the same
+     * vertices as {@link #getCoordinateBytes(Collection)}
+     *
+     * @param rois ROIs
+     * @return the number of bytes of their coordinate values if they were not packed
+     */
+    public static long getUnpackedCoordinateBytes(Collection<ROI> rois) {
+        long nCoordinates = 0;
+        for (ROI roi : rois) {
+            if (roi instanceof PolygonROI) nCoordinates += roi.getNumPoints();
+            else nCoordinates += roi.getGeometry().getNumPoints();
+        }
+        return nCoordinates * COORDINATE_VALUE_BYTES;
+    }
+}
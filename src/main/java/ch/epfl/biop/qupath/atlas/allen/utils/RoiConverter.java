@@ -0,0 +1,77 @@
+package ch.epfl.biop.qupath.atlas.allen.utils;
+
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.FloatPolygon;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.roi.GeometryTools;
+
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+
+/**
+ * Converts ImageJ ROIs of ABBA RoiSets straight into JTS geometries, in the pixel coordinates of the image.
+ * <p>
+ * Going through {@link IJTools#convertToROI} then transforming the QuPath object for rotated servers copies the
+ * coordinates several times. Here the polygon coordinates are read once from the Roi, go through the (optional)
+ * affine transform in the same pass and are written into a packed float sequence (see {@link PackedGeometries}).
+ * Composite ROIs are transformed as shapes before being converted. Other ROI types, or polygons which would not give
+ * a valid geometry, fall back to the QuPath conversion.
+ */
+public class RoiConverter {
+
+    /**
+     * @param roi an ImageJ area ROI
+     * @param transform affine transform applied to the coordinates, or null
+     * @return the geometry of the ROI, with packed float coordinates
+     */
+    public static Geometry toGeometry(Roi roi, AffineTransform transform) {
+        GeometryFactory factory = PackedGeometries.getFactory();
+        if (roi instanceof ShapeRoi) {
+            // The shape of a ShapeRoi is relative to its bounds
+            AffineTransform shapeTransform = transform == null ? new AffineTransform() : new AffineTransform(transform);
+            shapeTransform.translate(roi.getXBase(), roi.getYBase());
+            Shape shape = shapeTransform.createTransformedShape(((ShapeRoi) roi).getShape());
+            return PackedGeometries.pack(GeometryTools.shapeToGeometry(shape));
+        }
+
+        int type = roi.getType();
+        boolean polygon = type == Roi.POLYGON || type == Roi.FREEROI || type == Roi.TRACED_ROI
+                || (type == Roi.RECTANGLE && roi.getCornerDiameter() == 0);
+        if (polygon) {
+            FloatPolygon fp = roi.getFloatPolygon();
+            int n = fp.npoints;
+            if (n >= 3) {
+                // Closed ring: the first vertex is repeated at the end
+                float[] xy = new float[2 * (n + 1)];
+                for (int i = 0; i < n; i++) {
+                    xy[2 * i] = fp.xpoints[i];
+                    xy[2 * i + 1] = fp.ypoints[i];
+                }
+                xy[2 * n] = xy[0];
+                xy[2 * n + 1] = xy[1];
+                if (transform != null) {
+                    transform.transform(xy, 0, xy, 0, n + 1);
+                }
+                CoordinateSequence ring = PackedCoordinateSequenceFactory.FLOAT_FACTORY.create(xy, 2);
+                Polygon geometry = factory.createPolygon(ring);
+                if (geometry.isValid()) return geometry;
+            }
+        }
+
+        // Self intersecting polygons, ellipses, rounded rectangles...
+        Geometry geometry = IJTools.convertToROI(roi, 0, 0, 1, null).getGeometry();
+        if (transform != null) {
+            geometry = new AffineTransformation(
+                    transform.getScaleX(), transform.getShearX(), transform.getTranslateX(),
+                    transform.getShearY(), transform.getScaleY(), transform.getTranslateY()).transform(geometry);
+        }
+        return PackedGeometries.pack(geometry);
+    }
+}
@@ -0,0 +1,155 @@
+package ch.epfl.biop.qupath.atlas.allen.utils;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Binary cache of the geometries of an ABBA RoiSet, once converted to the coordinates of the image.
+ * <p>
+ * The cache sits next to the RoiSet, in the entry folder, and stores each region as its name (the Allen ID) and its
+ * geometry as WKB, in the order of the RoiSet. It is only valid for the RoiSet it was made from (same modification
+ * time and size) and for the same conversion, e.g. the rotation of the image server, given as a key.
+ * Reading it skips decoding the ImageJ ROIs and converting them. Geometries are read as packed float geometries,
+ * see {@link PackedGeometries}.
+ */
+public class RoiSetCache {
+    final static Logger logger = LoggerFactory.getLogger(RoiSetCache.class);
+
+    final static private String CACHE_FILENAME = "ABBA-RoiSet-cache.bin";
+    final static private int MAGIC = 0x41424243; // ABBC
+    final static private int VERSION = 2; // 2: geometries from RoiConverter
+
+    /**
+     * A converted ROI of the RoiSet
+     */
+    public static class Entry {
+        public final String name;
+        public final Geometry geometry;
+
+        public Entry(String name, Geometry geometry) {
+            this.name = name;
+            this.geometry = geometry;
+        }
+    }
+
+    /**
+     * @param roiSet the ABBA RoiSet zip file
+     * @return the cache file of this RoiSet
+     */
+    public static File getCacheFile(File roiSet) {
+        return new File(roiSet.getParentFile(), CACHE_FILENAME);
+    }
+
+    /**
+     * Reads the cached geometries of a RoiSet
+     *
+     * @param roiSet the ABBA RoiSet zip file the cache was made from
+     * @param conversionKey describes how the ROIs were converted, must be equal to the one used when writing
+     * @param nameFilter if not null, only the entries whose name is accepted are parsed. As in the RoiSet, the last
+     *                   two entries (the hemispheres) are always kept.
+     * @return the entries, in the order of the RoiSet, or null if there is no valid cache
+     */
+    public static List<Entry> read(File roiSet, String conversionKey, Predicate<String> nameFilter) {
+        File cacheFile = getCacheFile(roiSet);
+        if (!cacheFile.exists()) return null;
+
+        List<String> names = new ArrayList<>();
+        List<byte[]> wkbs = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != roiSet.lastModified() || in.readLong() != roiSet.length()
+                    || !in.readUTF().equals(conversionKey)) {
+                logger.info("Outdated RoiSet cache {}", cacheFile);
+                return null;
+            }
+            int nEntries = in.readInt();
+            for (int i = 0; i < nEntries; i++) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                if (nameFilter == null || i >= nEntries - 2 || nameFilter.test(name)) {
+                    byte[] wkb = new byte[length];
+                    in.readFully(wkb);
+                    names.add(name);
+                    wkbs.add(wkb);
+                } else {
+                    // skipBytes only skips less at the end of the file
+                    if (in.skipBytes(length) != length) throw new EOFException();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read RoiSet cache " + cacheFile, e);
+            return null;
+        }
+
+        // WKBReaders are not thread safe, one per geometry is cheap compared to the parsing
+        try {
+            return IntStream.range(0, names.size()).parallel()
+                    .mapToObj(i -> {
+                        try {
+                            return new Entry(names.get(i), new WKBReader(PackedGeometries.getFactory()).read(wkbs.get(i)));
+                        } catch (ParseException e) {
+                            throw new UncheckedIOException(new IOException(e));
+                        }
+                    })
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            logger.warn("Corrupted RoiSet cache " + cacheFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the geometries of a RoiSet to its cache, replacing any previous cache
+     *
+     * @param roiSet the ABBA RoiSet zip file the geometries come from
+     * @param conversionKey describes how the ROIs were converted
+     * @param entries all the entries of the RoiSet, in its order
+     */
+    public static void write(File roiSet, String conversionKey, List<Entry> entries) {
+        File cacheFile = getCacheFile(roiSet);
+        WKBWriter writer = new WKBWriter();
+        File tempFile = null;
+        try {
+            tempFile = Files.createTempFile(cacheFile.getParentFile().toPath(), CACHE_FILENAME, ".tmp").toFile();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(roiSet.lastModified());
+                out.writeLong(roiSet.length());
+                out.writeUTF(conversionKey);
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    byte[] wkb = writer.write(entry.geometry);
+                    out.writeUTF(entry.name == null ? "" : entry.name);
+                    out.writeInt(wkb.length);
+                    out.write(wkb);
+                }
+            }
+            // Concurrent imports of the same entry must never see a partial cache
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write RoiSet cache " + cacheFile, e);
+            if (tempFile != null) tempFile.delete();
+        }
+    }
+}
@@ -5,64 +5,107 @@ import ij.io.RoiDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 public class RoiSetLoader {
     final static Logger logger = LoggerFactory.getLogger( RoiSetLoader.class);
 
+    // Decides which entries of the zip to decode, before reading them
+    private interface EntryFilter {
+        boolean keep(int index, int nEntries, String roiName);
+    }
+
     // Taken directly from the RoiManager, so as to be able to run it concurrently
     // since the RoiManage only allows for one instance of itself to exist...
+    // The zip is opened with random access: the central directory is read once and entries are decoded in parallel.
+    // ROIs are returned in the order of the zip entries, so that the last ROIs of ABBA RoiSets remain the Left and Right hemispheres
     public static ArrayList<Roi> openRoiSet( File path ) {
-        ZipInputStream in = null;
-        ByteArrayOutputStream out = null;
-        int nRois = 0;
-        ArrayList<Roi> rois = new ArrayList<>();
+        return openRoiSet(path, (index, nEntries, roiName) -> true, roi -> true);
+    }
+
+    /**
+     * Loads only the ROIs whose name (the zip entry name without the .roi extension) is in the provided collection
+     *
+     * @param path the RoiSet zip file
+     * @param roiNames names of the ROIs to load
+     * @return the ROIs, in the order of the zip entries
+     */
+    public static ArrayList<Roi> openRoiSet( File path, Collection<String> roiNames ) {
+        Set<String> names = new HashSet<>(roiNames);
+        return openRoiSet(path, (index, nEntries, roiName) -> names.contains(roiName), roi -> true);
+    }
+
+    /**
+     * Loads only the ROIs of the ABBA RoiSet whose region ID, i.e. their name, is accepted by the filter.
+     * ROIs whose name is not a region ID are always loaded, as well as the last two ROIs (the Left and Right hemispheres).
+     * When the zip entries are named after the ROIs, entries of other regions are not even decompressed.
+     *
+     * @param path the ABBA RoiSet zip file
+     * @param regionIdFilter accepts the Allen IDs of the regions to load
+     * @return the ROIs, in the order of the zip entries
+     */
+    public static ArrayList<Roi> openRoiSetForRegions( File path, IntPredicate regionIdFilter ) {
+        return openRoiSet(path,
+                (index, nEntries, roiName) -> index >= nEntries - 2 || acceptsRegion(roiName, regionIdFilter),
+                roi -> acceptsRegion(roi.getName(), regionIdFilter));
+    }
+
+    private static boolean acceptsRegion( String roiName, IntPredicate regionIdFilter ) {
+        if (roiName == null) return true;
         try {
-            in = new ZipInputStream(new FileInputStream(path));
-            byte[] buf = new byte[1024];
-            int len;
-            ZipEntry entry = in.getNextEntry();
-            while (entry != null) {
+            return regionIdFilter.test(Integer.parseInt(roiName));
+        } catch (NumberFormatException e) {
+            // Not a region, or an entry name which is not the region ID: decide once decoded
+            return true;
+        }
+    }
+
+    private static ArrayList<Roi> openRoiSet( File path, EntryFilter entryFilter, Predicate<Roi> roiFilter ) {
+        ArrayList<Roi> rois = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(path)) {
+            List<? extends ZipEntry> entries = zip.stream()
+                    .filter(entry -> entry.getName().endsWith(".roi"))
+                    .collect(Collectors.toList());
+            int nEntries = entries.size();
+
+            Roi[] decoded = new Roi[nEntries];
+            IntStream.range(0, nEntries).parallel().forEach(i -> {
+                ZipEntry entry = entries.get(i);
                 String name = entry.getName();
-                if (name.endsWith(".roi")) {
-                    out = new ByteArrayOutputStream();
-                    while ((len = in.read(buf)) > 0)
-                        out.write(buf, 0, len);
-                    out.close();
-                    byte[] bytes = out.toByteArray();
-                    RoiDecoder rd = new RoiDecoder(bytes, name);
-                    Roi roi = rd.getRoi();
-                    if (roi != null) {
-                        name = name.substring(0, name.length() - 4);
-                        rois.add(roi);
-                        nRois++;
+                if (!entryFilter.keep(i, nEntries, name.substring(0, name.length() - 4))) return;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    Roi roi = new RoiDecoder(in.readAllBytes(), name).getRoi();
+                    // The last two entries are the hemispheres in ABBA RoiSets, never filtered once decoded
+                    if (roi != null && (i >= nEntries - 2 || roiFilter.test(roi))) {
+                        decoded[i] = roi;
                     }
-                }
-                entry = in.getNextEntry();
-            }
-            in.close();
-        } catch ( IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (in != null)
-                try {
-                    in.close();
                 } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            if (out != null)
-                try {
-                    out.close();
-                } catch (IOException e) {
-                }
-        }
-        if (nRois == 0) {
-            logger.error("This ZIP archive does not contain '.roi' files: {}", path);
+            });
+
+            for (Roi roi : decoded) {
+                if (roi != null) rois.add(roi);
+            }
+            if (nEntries == 0) {
+                logger.error("This ZIP archive does not contain '.roi' files: {}", path);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Could not read RoiSet " + path, e);
         }
         return rois;
     }
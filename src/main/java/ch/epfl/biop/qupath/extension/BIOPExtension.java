@@ -1,6 +1,7 @@
 package ch.epfl.biop.qupath.extension;
 
 import ch.epfl.biop.qupath.atlas.allen.commands.LoadAtlasRoisToQuPathCommand;
+import ch.epfl.biop.qupath.atlas.allen.commands.LoadAtlasRoisToQuPathProjectCommand;
 import ch.epfl.biop.qupath.analysis.RNAScopeCounts2;
 import ch.epfl.biop.qupath.commands.ApplyDisplaySettingsCommand;
 import org.controlsfx.control.action.Action;
@@ -36,8 +37,13 @@ public class BIOPExtension implements QuPathExtension {
         @ActionDescription("Commands for Allen Brain Atlas Communication")
         public final Action actionABBA;
 
+        @ActionMenu("BIOP>Atlas>Load Atlas Annotations into All Project Images")
+        @ActionDescription("Imports the ABBA RoiSets of all project images in parallel")
+        public final Action actionABBAProject;
+
         private ABBACommands(QuPathGUI qupath) {
             actionABBA = qupath.createImageDataAction( project -> new LoadAtlasRoisToQuPathCommand( qupath ).run());
+            actionABBAProject = qupath.createProjectAction( project -> new LoadAtlasRoisToQuPathProjectCommand( qupath ).run());
         }
     }
 
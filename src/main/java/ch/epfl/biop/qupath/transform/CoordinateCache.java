@@ -0,0 +1,150 @@
+package ch.epfl.biop.qupath.transform;
+
+/**
+ * Memoises the result of a 2D coordinate transformation for exact coordinates, within a single transfer job.
+ * <p>
+ * Neighbouring cells and the nucleus and cell ROIs of a same cell share many vertices, which would otherwise go
+ * through the (potentially expensive, e.g. thin plate spline) transform several times. Coordinates are stored in
+ * primitive open addressing tables, so lookups do not box. Keys are compared on their exact bits.
+ * <p>
+ * The cache is bounded: once it holds {@code maxEntries} coordinates, it is emptied and starts over, which keeps the
+ * memory constant for arbitrarily large jobs while still catching vertices shared by objects processed close in time.
+ * This class is not thread safe.
+ */
+public class CoordinateCache {
+
+    private final int maxEntries;
+
+    private long[] keysX;
+    private long[] keysY;
+    private double[] valuesX;
+    private double[] valuesY;
+    private boolean[] used;
+    private int mask;
+    private int size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Cache which is cleared when it reaches 2^19 coordinates (~35 MB)
+     */
+    public CoordinateCache() {
+        this(1 << 19);
+    }
+
+    /**
+     * @param maxEntries number of coordinates after which the cache is cleared
+     */
+    public CoordinateCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        allocate(1 << 12);
+    }
+
+    private void allocate(int capacity) {
+        keysX = new long[capacity];
+        keysY = new long[capacity];
+        valuesX = new double[capacity];
+        valuesY = new double[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * Looks for a coordinate in the cache
+     *
+     * @param x the source x coordinate
+     * @param y the source y coordinate
+     * @param result receives the transformed coordinates if they were cached
+     * @return true if the coordinate was cached
+     */
+    public boolean get(double x, double y, double[] result) {
+        long bx = Double.doubleToLongBits(x);
+        long by = Double.doubleToLongBits(y);
+        for (int i = slot(bx, by); used[i]; i = (i + 1) & mask) {
+            if (keysX[i] == bx && keysY[i] == by) {
+                result[0] = valuesX[i];
+                result[1] = valuesY[i];
+                hits++;
+                return true;
+            }
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Stores the transformed coordinates of a source coordinate
+     *
+     * @param x the source x coordinate
+     * @param y the source y coordinate
+     * @param tx the transformed x coordinate
+     * @param ty the transformed y coordinate
+     */
+    public void put(double x, double y, double tx, double ty) {
+        if (size >= maxEntries) {
+            allocate(used.length);
+        } else if (2 * (size + 1) > used.length) {
+            grow();
+        }
+        insert(Double.doubleToLongBits(x), Double.doubleToLongBits(y), tx, ty);
+    }
+
+    private void insert(long bx, long by, double tx, double ty) {
+        int i = slot(bx, by);
+        while (used[i]) {
+            if (keysX[i] == bx && keysY[i] == by) break;
+            i = (i + 1) & mask;
+        }
+        if (!used[i]) size++;
+        used[i] = true;
+        keysX[i] = bx;
+        keysY[i] = by;
+        valuesX[i] = tx;
+        valuesY[i] = ty;
+    }
+
+    private void grow() {
+        long[] oldKeysX = keysX, oldKeysY = keysY;
+        double[] oldValuesX = valuesX, oldValuesY = valuesY;
+        boolean[] oldUsed = used;
+        allocate(used.length * 2);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) insert(oldKeysX[i], oldKeysY[i], oldValuesX[i], oldValuesY[i]);
+        }
+    }
+
+    private int slot(long bx, long by) {
+        long h = bx * 0x9e3779b97f4a7c15L + by;
+        h = (h ^ (h >>> 32)) * 0xbf58476d1ce4e5b9L;
+        return (int) (h ^ (h >>> 29)) & mask;
+    }
+
+    /**
+     * @return number of lookups which found a cached coordinate
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups which required a transform evaluation
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of lookups which were served by the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : hits / (double) lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d vertex evaluations saved out of %d (%.1f%%)", hits, hits + misses, 100 * getHitRate());
+    }
+}
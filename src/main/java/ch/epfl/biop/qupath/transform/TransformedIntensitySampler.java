@@ -0,0 +1,201 @@
+package ch.epfl.biop.qupath.transform;
+
+import net.imglib2.realtransform.RealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.analysis.stats.RunningStatistics;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the intensities of objects defined on one image using the pixels of another, registered, image.
+ * <p>
+ * Instead of transferring the objects, the sampling grid of each object (one point per pixel at the chosen downsample)
+ * is mapped through the RealTransform and the intensities are read directly from the tiles of the other server.
+ * The samples of an object are grouped per tile so that each tile is read once, and the most recently used tiles
+ * are kept in a small cache as neighbouring objects usually fall on the same tiles. Tiles are read from the z-slice and
+ * timepoint of each object.
+ * <p>
+ * Values are read with nearest neighbour interpolation. This class is not thread safe, as RealTransforms are not.
+ */
+public class TransformedIntensitySampler {
+
+    final private static Logger logger = LoggerFactory.getLogger(TransformedIntensitySampler.class);
+
+    private final ImageServer<BufferedImage> server;
+    private final RealTransform transform;
+    private final double downsample;
+    private final int tileSize;
+    // Keyed by z, t and tile indices
+    private final Map<List<Integer>, BufferedImage> tileCache;
+
+    private int tileReads = 0;
+
+    /**
+     * @param server the server of the image from which to read the intensities
+     * @param transform maps the coordinates of the objects to the coordinates of the server
+     * @param downsample the downsample at which to sample the objects and read the server
+     * @param tileSize the size, in pixels at the chosen downsample, of the tiles read from the server
+     * @param maxCachedTiles how many tiles to keep in memory
+     */
+    public TransformedIntensitySampler(ImageServer<BufferedImage> server, RealTransform transform, double downsample, int tileSize, int maxCachedTiles) {
+        this.server = server;
+        this.transform = transform;
+        this.downsample = downsample;
+        this.tileSize = tileSize;
+        this.tileCache = new LinkedHashMap<List<Integer>, BufferedImage>(maxCachedTiles, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Integer>, BufferedImage> eldest) {
+                return size() > maxCachedTiles;
+            }
+        };
+    }
+
+    /**
+     * Measures all objects, in an order which favors the reuse of cached tiles
+     *
+     * @param objects the objects to measure
+     * @param prefix prefix of the measurement names, typically the name of the other image
+     * @throws IOException if a tile could not be read
+     */
+    public void measure(List<PathObject> objects, String prefix) throws IOException {
+        // Plane by plane, then row-major order of tile bands, in the coordinates of the objects
+        double band = tileSize * downsample;
+        List<PathObject> sortedObjects = new ArrayList<>(objects);
+        sortedObjects.sort(Comparator.comparingInt((PathObject o) -> o.getROI().getT())
+                .thenComparingInt(o -> o.getROI().getZ())
+                .thenComparingDouble(o -> Math.floor(o.getROI().getCentroidY() / band))
+                .thenComparingDouble(o -> o.getROI().getCentroidX()));
+
+        for (PathObject object : sortedObjects) {
+            measure(object, prefix);
+        }
+        logger.info("Measured {} objects with {} tile reads", objects.size(), tileReads);
+    }
+
+    /**
+     * Measures the mean, standard deviation, min and max of each channel within the ROI of an object
+     *
+     * @param object the object to measure
+     * @param prefix prefix of the measurement names, typically the name of the other image
+     * @throws IOException if a tile could not be read
+     */
+    public void measure(PathObject object, String prefix) throws IOException {
+        ROI roi = object.getROI();
+        if (roi == null || !roi.isArea()) return;
+
+        int nChannels = server.nChannels();
+        List<RunningStatistics> stats = new ArrayList<>(nChannels);
+        for (int c = 0; c < nChannels; c++) stats.add(new RunningStatistics());
+
+        // Map the sampling grid of the object into the pixel coordinates of the server, at the requested downsample
+        int nx = Math.max(1, (int) Math.ceil(roi.getBoundsWidth() / downsample));
+        int ny = Math.max(1, (int) Math.ceil(roi.getBoundsHeight() / downsample));
+        double[] xs = new double[nx * ny];
+        double[] ys = new double[nx * ny];
+        long[] keys = new long[nx * ny];
+        int n = 0;
+
+        double levelWidth = server.getWidth() / downsample;
+        double levelHeight = server.getHeight() / downsample;
+        double[] source = new double[3];
+        double[] target = new double[3];
+        for (int j = 0; j < ny; j++) {
+            double y = roi.getBoundsY() + (j + 0.5) * downsample;
+            for (int i = 0; i < nx; i++) {
+                double x = roi.getBoundsX() + (i + 0.5) * downsample;
+                if (!roi.contains(x, y)) continue;
+                source[0] = x;
+                source[1] = y;
+                // In-plane transform, evaluated at z = 0 as for transferred objects (see Warpy.getJTSFilter). The plane
+                // is not a coordinate of the transform: the samples are read from the z-slice and timepoint of the object
+                source[2] = 0;
+                transform.apply(source, target);
+                double px = target[0] / downsample;
+                double py = target[1] / downsample;
+                if (px < 0 || py < 0 || px >= levelWidth || py >= levelHeight) continue;
+                xs[n] = px;
+                ys[n] = py;
+                keys[n] = ((long) (py / tileSize) << 32) | (long) (px / tileSize);
+                n++;
+            }
+        }
+
+        // Group the samples per tile (counting sort on the tile index), so that each tile is fetched once
+        Map<Long, Integer> tileSlots = new HashMap<>();
+        List<Long> slotKeys = new ArrayList<>();
+        int[] sampleSlots = new int[n];
+        for (int k = 0; k < n; k++) {
+            Integer slot = tileSlots.get(keys[k]);
+            if (slot == null) {
+                slot = slotKeys.size();
+                tileSlots.put(keys[k], slot);
+                slotKeys.add(keys[k]);
+            }
+            sampleSlots[k] = slot;
+        }
+        int[] slotStarts = new int[slotKeys.size() + 1];
+        for (int k = 0; k < n; k++) slotStarts[sampleSlots[k] + 1]++;
+        for (int s = 0; s < slotKeys.size(); s++) slotStarts[s + 1] += slotStarts[s];
+        int[] order = new int[n];
+        int[] fill = slotStarts.clone();
+        for (int k = 0; k < n; k++) order[fill[sampleSlots[k]]++] = k;
+
+        for (int s = 0; s < slotKeys.size(); s++) {
+            long key = slotKeys.get(s);
+            int tileX = (int) (key & 0xFFFFFFFFL);
+            int tileY = (int) (key >>> 32);
+            Raster raster = getTile(roi.getZ(), roi.getT(), tileX, tileY).getRaster();
+            for (int o = slotStarts[s]; o < slotStarts[s + 1]; o++) {
+                int k = order[o];
+                int lx = Math.min(raster.getWidth() - 1, (int) (xs[k] - tileX * tileSize));
+                int ly = Math.min(raster.getHeight() - 1, (int) (ys[k] - tileY * tileSize));
+                for (int c = 0; c < nChannels; c++) {
+                    stats.get(c).addValue(raster.getSampleDouble(lx, ly, c));
+                }
+            }
+        }
+
+        MeasurementList ml = object.getMeasurementList();
+        List<ImageChannel> channels = server.getMetadata().getChannels();
+        for (int c = 0; c < nChannels; c++) {
+            String name = prefix + channels.get(c).getName() + ": ";
+            RunningStatistics stat = stats.get(c);
+            ml.putMeasurement(name + "Mean", stat.getMean());
+            ml.putMeasurement(name + "Std.Dev.", stat.getStdDev());
+            ml.putMeasurement(name + "Min", stat.getMin());
+            ml.putMeasurement(name + "Max", stat.getMax());
+        }
+        ml.close();
+    }
+
+    private BufferedImage getTile(int z, int t, int tileX, int tileY) throws IOException {
+        List<Integer> key = Arrays.asList(z, t, tileX, tileY);
+        BufferedImage tile = tileCache.get(key);
+        if (tile == null) {
+            int x = (int) Math.round(tileX * tileSize * downsample);
+            int y = (int) Math.round(tileY * tileSize * downsample);
+            int w = (int) Math.min(server.getWidth() - x, Math.round(tileSize * downsample));
+            int h = (int) Math.min(server.getHeight() - y, Math.round(tileSize * downsample));
+            tile = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h, z, t));
+            tileCache.put(key, tile);
+            tileReads++;
+        }
+        return tile;
+    }
+}
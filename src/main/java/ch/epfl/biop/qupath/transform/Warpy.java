@@ -1,5 +1,6 @@
 package ch.epfl.biop.qupath.transform;
 
+import ch.epfl.biop.qupath.utils.GeometryFingerprint;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.RealTransform;
@@ -9,10 +10,12 @@ import org.locationtech.jts.geom.Geometry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.analysis.features.ObjectMeasurements;
+import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.gui.QuPathApp;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.*;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.roi.GeometryTools;
@@ -24,11 +27,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -148,8 +157,9 @@ public class Warpy {
      */
     public static Collection<PathObject> transformPathObjects(Collection<PathObject> objects, RealTransform transform) {
 
-        // Make JTS transformer
-        CoordinateSequenceFilter transformer = getJTSFilter(transform);
+        // Make JTS transformer, shared vertices are only transformed once
+        CoordinateCache cache = new CoordinateCache();
+        CoordinateSequenceFilter transformer = getJTSFilter(transform, cache);
 
         // Transforms all objects and add them to a new list
         List<PathObject> transformedObjects = new ArrayList<>();
@@ -161,9 +171,58 @@ public class Warpy {
                 logger.info("Could not transform object " + o, e);
             }
         }
+        logger.info("Vertex cache: {}", cache);
         return transformedObjects;
     }
 
+    /**
+     * Streaming version of {@link #transformPathObjects(Collection, RealTransform)}: each object and each of its
+     * children is warped and immediately written as a GeoJSON feature, see {@link WarpyGeoJson}. Warped objects are
+     * never kept in memory, so very large collections can be exported. The hierarchy is not written, it is
+     * rebuilt from the object locations by {@link WarpyGeoJson#importPathObjects(File, PathObjectHierarchy)}.
+     *
+     * @param objects the source objects to transform, with their children
+     * @param transform the realtransform to use, acquired using {@link #getRealTransform(ProjectImageEntry, ProjectImageEntry)}
+     * @param geoJsonFile the file to write, overwritten if it exists
+     * @return the number of objects written
+     * @throws IOException if the file could not be written
+     */
+    public static int transformPathObjectsToGeoJson(Collection<PathObject> objects, RealTransform transform, File geoJsonFile) throws IOException {
+
+        CoordinateCache cache = new CoordinateCache();
+        CoordinateSequenceFilter transformer = getJTSFilter(transform, cache);
+
+        try (WarpyGeoJson.FeatureWriter writer = new WarpyGeoJson.FeatureWriter(geoJsonFile)) {
+            for (PathObject o : objects) {
+                transformPathObjectAndChildren(o, transformer, writer);
+            }
+            logger.info("Wrote {} warped objects to {}", writer.getCount(), geoJsonFile.getName());
+            logger.info("Vertex cache: {}", cache);
+            return writer.getCount();
+        }
+    }
+
+    /**
+     * Recursive approach to warp a PathObject and its children and to write them one by one
+     * see {@link #transformPathObjectsToGeoJson(Collection, RealTransform, File)}
+     *
+     * @param object    qupath annotation or detection object
+     * @param transform jts free form transformation
+     * @param writer    where the warped objects are written
+     */
+    private static void transformPathObjectAndChildren(PathObject object, CoordinateSequenceFilter transform, WarpyGeoJson.FeatureWriter writer) {
+        try {
+            writer.write(transformPathObject(object, transform, true, true));
+        } catch (Exception e) {
+            logger.info("Could not transform object " + object, e);
+        }
+        if (object.hasChildren()) {
+            for (PathObject child : object.getChildObjects()) {
+                transformPathObjectAndChildren(child, transform, writer);
+            }
+        }
+    }
+
     /**
      * Internal method to ensure an easy way to get an ProjectImageEntry from its ID
      *
@@ -188,46 +247,176 @@ public class Warpy {
     public static RealTransform getRealTransform(ProjectImageEntry sourceEntry, ProjectImageEntry targetEntry) {
 
         // Search Forward
-        String targetID = targetEntry.getID();
-        String sourceID = sourceEntry.getID();
-        Path targetEntryPath = targetEntry.getEntryPath();
-        for (File currentFile : targetEntryPath.toFile().listFiles()) {
-            Matcher matcher = transformFilePattern.matcher(currentFile.getName());
-            if (matcher.matches()) {
-                if (matcher.group("target").equals(targetID)) {
-                    // Check the source ID and return if it is a match
-                    String potentialSourceID = matcher.group("source");
-                    if (sourceID.equals(potentialSourceID)) {
-                        return getRealTransform(currentFile);
-                    }
-                }
-            }
+        File forwardFile = getTransformFile(targetEntry.getEntryPath(), targetEntry.getID(), sourceEntry.getID());
+        if (forwardFile != null) {
+            return getRealTransform(forwardFile);
         }
 
         // Search Backwards
-        Path sourceEntryPath = sourceEntry.getEntryPath();
-        for (File currentFile : sourceEntryPath.toFile().listFiles()) {
+        File inverseFile = getTransformFile(sourceEntry.getEntryPath(), sourceEntry.getID(), targetEntry.getID());
+        if (inverseFile != null) {
+            RealTransform rt = getRealTransform(inverseFile);
+            if (rt instanceof InvertibleRealTransform) {
+                return ((InvertibleRealTransform) rt).inverse();
+            } else {
+                logger.error("Could not invert transform from file {}. This error should not exist.", inverseFile.getName());
+                return null;
+            }
+        }
+        // We found nothing
+        return null;
+    }
+
+    /**
+     * Looks for a serialized transform file in an entry folder
+     *
+     * @param entryPath the entry folder to search
+     * @param targetID the ID of the target entry of the transform
+     * @param sourceID the ID of the source entry of the transform
+     * @return the transform file, or null if there is none
+     */
+    private static File getTransformFile(Path entryPath, String targetID, String sourceID) {
+        for (File currentFile : entryPath.toFile().listFiles()) {
             Matcher matcher = transformFilePattern.matcher(currentFile.getName());
             if (matcher.matches()) {
-                if (matcher.group("source").equals(targetID)) {
-                    // Check the source ID and return if it is a match
-                    String potentialTargetID = matcher.group("target");
-                    if (sourceID.equals(potentialTargetID)) {
-                        RealTransform rt = getRealTransform(currentFile);
-                        if (rt instanceof InvertibleRealTransform) {
-                            return ((InvertibleRealTransform) rt).inverse();
-                        } else {
-                            logger.error("Could not invert transform from file {}. This error should not exist.");
-                            return null;
-                        }
-                    }
+                if (matcher.group("target").equals(targetID) && matcher.group("source").equals(sourceID)) {
+                    return currentFile;
                 }
             }
         }
-        // We found nothing
         return null;
     }
 
+    /**
+     * Fingerprint of the transform which is used between two entries, computed from the content and the name of the
+     * serialized transform file so that a forward and an inverse transform give different fingerprints
+     *
+     * @param sourceEntry the source from which to transform
+     * @param targetEntry the target which receives the transformed objects
+     * @return the fingerprint of the transform
+     * @throws IOException if no transform file exists between these entries, or if it could not be read
+     */
+    public static long getTransformFingerprint(ProjectImageEntry sourceEntry, ProjectImageEntry targetEntry) throws IOException {
+        File transformFile = getTransformFile(targetEntry.getEntryPath(), targetEntry.getID(), sourceEntry.getID());
+        if (transformFile == null) {
+            transformFile = getTransformFile(sourceEntry.getEntryPath(), sourceEntry.getID(), targetEntry.getID());
+        }
+        if (transformFile == null) {
+            throw new FileNotFoundException("No transform file between " + sourceEntry.getImageName() + " and " + targetEntry.getImageName());
+        }
+        return GeometryFingerprint.combine(GeometryFingerprint.of(transformFile.getName()), GeometryFingerprint.of(Files.readAllBytes(transformFile.toPath())));
+    }
+
+    /**
+     * Incremental version of {@link #transformPathObjects(Collection, RealTransform)}: only the source objects which
+     * were added, modified or removed since the last incremental transfer between these two entries are warped, added to or
+     * removed from the target hierarchy. Unchanged objects are left untouched, including their measurements.
+     * <p>
+     * Each source object is identified by a fingerprint of its type, class, ROI and of the transform file
+     * (QuPath objects have no persistent ID), see {@link GeometryFingerprint}. The transferred objects are tagged with a
+     * transfer ID measurement and recorded in the properties of the target image data, see {@link WarpyTransferRecord}:
+     * the record is saved together with the target hierarchy, and a transferred object is found again even if it was
+     * edited in the target. A modified source object is removed and added again. If the transform file changes, all
+     * objects are transferred again.
+     * <p>
+     * Objects are warped one by one (without their children) and inserted in the target hierarchy based on their location.
+     * The first incremental run transfers everything: objects transferred previously with
+     * {@link #transformPathObjects(Collection, RealTransform)} should be removed from the target beforehand.
+     *
+     * @param sourceEntry the entry from which to transfer the objects
+     * @param targetEntry the entry which receives the objects
+     * @param targetImageData the image data of the target entry, typically the one of the currently opened image
+     * @throws IOException if the source hierarchy or the transform could not be read
+     */
+    public static void transferPathObjectsIncrementally(ProjectImageEntry sourceEntry, ProjectImageEntry targetEntry, ImageData targetImageData) throws IOException {
+
+        RealTransform transform = getRealTransform(sourceEntry, targetEntry);
+        if (transform == null) {
+            throw new IOException("No valid transform from " + sourceEntry.getImageName() + " to " + targetEntry.getImageName());
+        }
+        long transformFingerprint = getTransformFingerprint(sourceEntry, targetEntry);
+        PathObjectHierarchy targetHierarchy = targetImageData.getHierarchy();
+
+        // Fingerprint all source objects. Identical duplicates get an occurrence index so that they are all kept
+        List<PathObject> sourceObjects = PathObjectTools.getFlattenedObjectList(sourceEntry.readHierarchy().getRootObject(), null, false);
+        Map<String, PathObject> currentObjects = new LinkedHashMap<>();
+        for (PathObject o : sourceObjects) {
+            long fingerprint = GeometryFingerprint.combine(GeometryFingerprint.of(o), transformFingerprint);
+            String key = GeometryFingerprint.toHex(fingerprint);
+            for (int occurrence = 1; currentObjects.containsKey(key); occurrence++) {
+                key = GeometryFingerprint.toHex(GeometryFingerprint.combine(fingerprint, occurrence));
+            }
+            currentObjects.put(key, o);
+        }
+
+        WarpyTransferRecord previousRecord = WarpyTransferRecord.read(sourceEntry, targetImageData);
+        WarpyTransferRecord record = new WarpyTransferRecord();
+        record.nextId = previousRecord.nextId;
+
+        // Objects which were transferred but do not exist anymore in the source, or changed
+        Map<Long, WarpyTransferRecord.Target> staleTargets = new HashMap<>();
+        previousRecord.objects.forEach((sourceKey, target) -> {
+            if (currentObjects.containsKey(sourceKey)) {
+                record.objects.put(sourceKey, target);
+            } else {
+                staleTargets.put(target.id, target);
+            }
+        });
+
+        List<PathObject> toRemove = new ArrayList<>();
+        if (!staleTargets.isEmpty()) {
+            // Found by transfer ID, edited objects included, else by fingerprint if the ID measurement was removed
+            List<PathObject> targetObjects = PathObjectTools.getFlattenedObjectList(targetHierarchy.getRootObject(), null, false);
+            List<PathObject> untagged = new ArrayList<>();
+            for (PathObject o : targetObjects) {
+                double id = o.getMeasurementList().getMeasurementValue(WarpyTransferRecord.TRANSFER_ID);
+                if (Double.isNaN(id)) {
+                    untagged.add(o);
+                } else if (staleTargets.remove((long) id) != null) {
+                    toRemove.add(o);
+                }
+            }
+            Set<String> staleFingerprints = new HashSet<>();
+            staleTargets.values().forEach(target -> staleFingerprints.add(target.fingerprint));
+            for (PathObject o : untagged) {
+                if (staleFingerprints.remove(GeometryFingerprint.toHex(GeometryFingerprint.of(o)))) {
+                    toRemove.add(o);
+                }
+            }
+            if (!staleFingerprints.isEmpty()) {
+                logger.info("{} previously transferred objects were not found in {} anymore", staleFingerprints.size(), targetEntry.getImageName());
+            }
+            targetHierarchy.removeObjects(toRemove, true);
+        }
+
+        // Warp and add the new or modified objects
+        CoordinateCache cache = new CoordinateCache();
+        CoordinateSequenceFilter transformer = getJTSFilter(transform, cache);
+        int nAdded = 0;
+        for (Map.Entry<String, PathObject> entry : currentObjects.entrySet()) {
+            if (record.objects.containsKey(entry.getKey())) continue;
+            try {
+                PathObject transformedObject = transformPathObject(entry.getValue(), transformer, true, true);
+                long id = record.nextId++;
+                transformedObject.getMeasurementList().putMeasurement(WarpyTransferRecord.TRANSFER_ID, id);
+                transformedObject.getMeasurementList().close();
+                targetHierarchy.insertPathObject(transformedObject, false);
+                record.objects.put(entry.getKey(), new WarpyTransferRecord.Target(id, GeometryFingerprint.toHex(GeometryFingerprint.of(transformedObject))));
+                nAdded++;
+            } catch (Exception e) {
+                logger.info("Could not transform object " + entry.getValue(), e);
+            }
+        }
+
+        targetHierarchy.fireHierarchyChangedEvent(Warpy.class);
+        // Saved with the target hierarchy
+        record.write(sourceEntry, targetImageData);
+
+        logger.info("Incremental transfer from {} to {}: {} objects added, {} removed, {} unchanged",
+                sourceEntry.getImageName(), targetEntry.getImageName(), nAdded, toRemove.size(), record.objects.size() - nAdded);
+        logger.info("Vertex cache: {}", cache);
+    }
+
     /**
      * Convenience method to add intensity measurements to an image, regardless of whether it is fluorescent or brightfield.
      * NOTE: We do not hand
@@ -244,15 +433,69 @@ public class Warpy {
         //cf https://forum.image.sc/t/transferring-segmentation-predictions-from-custom-masks-to-qupath/43408/15
         ImageData.ImageType type = getProjectEntry().readImageData().getImageType();
 
+        server = getIntensityServer(server, type, getCurrentImageData().getColorDeconvolutionStains());
+
+        addIntensityMeasurements(objects, server, downsample);
+    }
+
+    /**
+     * Color deconvolves brightfield images, so that intensities are measured on the stains rather than on RGB values
+     *
+     * @param server the server of the image to measure
+     * @param type the type of the image
+     * @param stains the stains of the image, used if it is a brightfield image
+     * @return the server on which to measure intensities
+     */
+    private static ImageServer<BufferedImage> getIntensityServer(ImageServer<BufferedImage> server, ImageData.ImageType type, ColorDeconvolutionStains stains) {
         if (type.equals(ImageData.ImageType.BRIGHTFIELD_H_DAB) ||
                 type.equals(ImageData.ImageType.BRIGHTFIELD_H_DAB) ||
                 type.equals(ImageData.ImageType.BRIGHTFIELD_OTHER)) {
             server = new qupath.lib.images.servers.TransformedServerBuilder(server)
-                    .deconvolveStains(getCurrentImageData().getColorDeconvolutionStains(), 1, 2)
+                    .deconvolveStains(stains, 1, 2)
                     .build();
         }
+        return server;
+    }
 
-        addIntensityMeasurements(objects, server, downsample);
+    /**
+     * Measures the intensities of objects using the pixels of another registered entry, without transferring the objects.
+     * The sampling grid of each detection is mapped through the transform between both entries and the intensities are read
+     * from the tiles of the other entry, see {@link TransformedIntensitySampler}.
+     * Measurements are named after the other entry, e.g. "otherImage: Channel 1: Mean".
+     *
+     * @param objects the objects to measure (and their children), only detections are measured, as in {@link #addIntensityMeasurements(Collection, double)}
+     * @param objectsEntry the entry on which the objects are defined
+     * @param pixelsEntry the entry from which to read the intensities, there should be a transform between both entries
+     * @param downsample downsample factor to choose the resolution at which to measure the intensity features
+     * @throws IOException if the transform is missing or if the other entry could not be read
+     */
+    public static void addIntensityMeasurements(Collection<PathObject> objects, ProjectImageEntry objectsEntry, ProjectImageEntry<BufferedImage> pixelsEntry, double downsample) throws IOException {
+
+        RealTransform transform = getRealTransform(objectsEntry, pixelsEntry);
+        if (transform == null) {
+            throw new IOException("No valid transform from " + objectsEntry.getImageName() + " to " + pixelsEntry.getImageName());
+        }
+
+        List<PathObject> detections = new ArrayList<>();
+        for (PathObject object : objects) {
+            for (PathObject o : PathObjectTools.getFlattenedObjectList(object, null, true)) {
+                if (o instanceof PathDetectionObject) detections.add(o);
+            }
+        }
+
+        // The other entry is opened only for the sampling, its reader is closed afterwards
+        ImageData<BufferedImage> pixelsData = pixelsEntry.readImageData();
+        try {
+            ImageServer<BufferedImage> server = getIntensityServer(pixelsData.getServer(), pixelsData.getImageType(), pixelsData.getColorDeconvolutionStains());
+            new TransformedIntensitySampler(server, transform, downsample, 512, 64)
+                    .measure(detections, pixelsEntry.getImageName() + ": ");
+        } finally {
+            try {
+                pixelsData.getServer().close();
+            } catch (Exception e) {
+                logger.warn("Could not close the server of " + pixelsEntry.getImageName(), e);
+            }
+        }
     }
 
     /**
@@ -405,6 +648,51 @@ public class Warpy {
         };
     }
 
+    /**
+     * Same as {@link #getJTSFilter(RealTransform)}, but each exact coordinate is only transformed once as long as it is
+     * in the provided cache. Meant to be used for a single transfer job, where cells share vertices with their neighbours
+     * and with their nucleus.
+     * <p>
+     * The returned filter is not thread safe.
+     *
+     * @param rt imglib2 realtransform object
+     * @param cache the cache of already transformed coordinates, which also keeps track of the hit rate
+     * @return the equivalent JTS {@link CoordinateSequenceFilter} operation which can be applied to {@link Geometry}.
+     */
+    public static CoordinateSequenceFilter getJTSFilter(RealTransform rt, CoordinateCache cache) {
+        return new CoordinateSequenceFilter() {
+            final RealPoint pt = new RealPoint(3);
+            final double[] cached = new double[2];
+
+            @Override
+            public void filter(CoordinateSequence seq, int i) {
+                double x = seq.getOrdinate(i, 0);
+                double y = seq.getOrdinate(i, 1);
+                if (!cache.get(x, y, cached)) {
+                    pt.setPosition(x, 0);
+                    pt.setPosition(y, 1);
+                    pt.setPosition(0, 2);
+                    rt.apply(pt, pt);
+                    cached[0] = pt.getDoublePosition(0);
+                    cached[1] = pt.getDoublePosition(1);
+                    cache.put(x, y, cached[0], cached[1]);
+                }
+                seq.setOrdinate(i, 0, cached[0]);
+                seq.setOrdinate(i, 1, cached[1]);
+            }
+
+            @Override
+            public boolean isDone() {
+                return false;
+            }
+
+            @Override
+            public boolean isGeometryChanged() {
+                return true;
+            }
+        };
+    }
+
     /**
      * Main class for debugging
      *
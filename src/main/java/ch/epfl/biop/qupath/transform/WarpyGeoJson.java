@@ -0,0 +1,173 @@
+package ch.epfl.biop.qupath.transform;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.Consumer;
+
+/**
+ * Streaming GeoJSON export and import of PathObjects, so that large collections of warped objects can be moved
+ * between projects or to external tools without holding the full collection in memory.
+ * <p>
+ * Objects are written one by one as Features of a FeatureCollection, using QuPath's own GeoJSON serialization
+ * ({@link GsonTools}). Child objects are written as separate features, the hierarchy is rebuilt from the object
+ * locations when importing.
+ * <p>
+ * See {@link Warpy#transformPathObjectsToGeoJson(java.util.Collection, net.imglib2.realtransform.RealTransform, File)}
+ * to warp and export objects in a single pass.
+ */
+public class WarpyGeoJson {
+
+    final private static Logger logger = LoggerFactory.getLogger(WarpyGeoJson.class);
+
+    /**
+     * Writes PathObjects as GeoJSON features, one at a time. The FeatureCollection is only closed when
+     * {@link #close()} is called.
+     */
+    public static class FeatureWriter implements Closeable {
+
+        private final Gson gson = GsonTools.getInstance();
+        private final JsonWriter jsonWriter;
+        private int count = 0;
+
+        /**
+         * Opens a FeatureCollection in the provided file, which is overwritten if it exists
+         *
+         * @param file the GeoJSON file to write
+         * @throws IOException if the file could not be opened
+         */
+        public FeatureWriter(File file) throws IOException {
+            this(new BufferedWriter(new FileWriter(file)));
+        }
+
+        /**
+         * Opens a FeatureCollection in the provided writer, which gets closed with this FeatureWriter
+         *
+         * @param writer where to write the GeoJSON
+         * @throws IOException if the collection could not be started
+         */
+        public FeatureWriter(java.io.Writer writer) throws IOException {
+            jsonWriter = new JsonWriter(writer);
+            jsonWriter.beginObject();
+            jsonWriter.name("type").value("FeatureCollection");
+            jsonWriter.name("features");
+            jsonWriter.beginArray();
+        }
+
+        /**
+         * Writes a single object, without its children
+         *
+         * @param object the object to write
+         */
+        public void write(PathObject object) {
+            gson.toJson(object, PathObject.class, jsonWriter);
+            count++;
+        }
+
+        /**
+         * @return the number of features written so far
+         */
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            jsonWriter.endArray();
+            jsonWriter.endObject();
+            jsonWriter.close();
+        }
+    }
+
+    /**
+     * Reads PathObjects from a GeoJSON file one by one. The file can either contain a FeatureCollection
+     * or a plain array of features.
+     *
+     * @param file the GeoJSON file to read
+     * @param consumer receives each object as soon as it is read
+     * @return the number of objects read
+     * @throws IOException if the file could not be read
+     */
+    public static int readPathObjects(File file, Consumer<PathObject> consumer) throws IOException {
+        try (Reader reader = new BufferedReader(new FileReader(file))) {
+            return readPathObjects(reader, consumer);
+        }
+    }
+
+    /**
+     * Reads PathObjects from GeoJSON one by one, see {@link #readPathObjects(File, Consumer)}
+     *
+     * @param reader the GeoJSON source, not closed by this method
+     * @param consumer receives each object as soon as it is read
+     * @return the number of objects read
+     * @throws IOException if the GeoJSON could not be read or is neither a FeatureCollection nor an array
+     */
+    public static int readPathObjects(Reader reader, Consumer<PathObject> consumer) throws IOException {
+        Gson gson = GsonTools.getInstance();
+        JsonReader jsonReader = new JsonReader(reader);
+        int count = 0;
+
+        if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+            // FeatureCollection: skip everything but the features
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                if (jsonReader.nextName().equals("features")) {
+                    count += readFeatureArray(gson, jsonReader, consumer);
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        } else if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+            count += readFeatureArray(gson, jsonReader, consumer);
+        } else {
+            throw new IOException("Expected a GeoJSON FeatureCollection or an array of features, found " + jsonReader.peek());
+        }
+        return count;
+    }
+
+    private static int readFeatureArray(Gson gson, JsonReader jsonReader, Consumer<PathObject> consumer) throws IOException {
+        int count = 0;
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            PathObject object = gson.fromJson(jsonReader, PathObject.class);
+            if (object != null) {
+                consumer.accept(object);
+                count++;
+            }
+        }
+        jsonReader.endArray();
+        return count;
+    }
+
+    /**
+     * Reads all objects of a GeoJSON file straight into a hierarchy. Each object is inserted based on its location,
+     * and a single hierarchy change event is fired at the end.
+     *
+     * @param file the GeoJSON file to read
+     * @param hierarchy the hierarchy which receives the objects
+     * @return the number of objects imported
+     * @throws IOException if the file could not be read
+     */
+    public static int importPathObjects(File file, PathObjectHierarchy hierarchy) throws IOException {
+        int count = readPathObjects(file, object -> hierarchy.insertPathObject(object, false));
+        hierarchy.fireHierarchyChangedEvent(WarpyGeoJson.class);
+        logger.info("Imported {} objects from {}", count, file.getName());
+        return count;
+    }
+}
@@ -0,0 +1,88 @@
+package ch.epfl.biop.qupath.transform;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track, for one target image, of the source objects which were transferred by
+ * {@link Warpy#transferPathObjectsIncrementally(ProjectImageEntry, ProjectImageEntry, ImageData)}.
+ * <p>
+ * Each transferred source object is stored as the fingerprint of its geometry, class and of the transform used,
+ * associated to the warped object which was added to the target: the transfer ID written in its measurements, and the
+ * fingerprint of its geometry and class, used if the ID was removed. The record is serialized as JSON in the properties
+ * of the target image data, so that it is saved together with the target hierarchy and never describes objects which
+ * were not saved.
+ */
+public class WarpyTransferRecord {
+
+    final private static Logger logger = LoggerFactory.getLogger(WarpyTransferRecord.class);
+
+    /**
+     * Measurement identifying the transferred objects in the target hierarchy
+     */
+    public static final String TRANSFER_ID = "Warpy transfer ID";
+
+    /**
+     * A warped object added to the target
+     */
+    static class Target {
+        long id;
+        // Fingerprint of the warped object in hexadecimal
+        String fingerprint;
+
+        Target(long id, String fingerprint) {
+            this.id = id;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    // Source object fingerprint in hexadecimal -> warped object
+    Map<String, Target> objects = new LinkedHashMap<>();
+    // Transfer IDs are never reused, below 2^53 they are stored exactly as measurements
+    long nextId = 1;
+
+    /**
+     * @param sourceEntry the entry the objects are transferred from
+     * @return the name of the image data property where the record of the transfers from this entry is stored
+     */
+    public static String getPropertyKey(ProjectImageEntry sourceEntry) {
+        return "warpy-record_" + sourceEntry.getID();
+    }
+
+    /**
+     * Reads the record of a previous transfer
+     *
+     * @param sourceEntry the entry the objects are transferred from
+     * @param targetImageData the image data receiving the objects
+     * @return the previous record, or an empty record if there was no previous transfer or if it could not be read
+     */
+    public static WarpyTransferRecord read(ProjectImageEntry sourceEntry, ImageData targetImageData) {
+        Object json = targetImageData.getProperty(getPropertyKey(sourceEntry));
+        if (json instanceof String) {
+            try {
+                WarpyTransferRecord record = new Gson().fromJson((String) json, WarpyTransferRecord.class);
+                if (record != null && record.objects != null) return record;
+            } catch (JsonParseException e) {
+                logger.error("Could not read transfer record from " + sourceEntry.getImageName() + ", all objects will be transferred", e);
+            }
+        }
+        return new WarpyTransferRecord();
+    }
+
+    /**
+     * Stores this record in the properties of the target image data, it is written to disk when the image data is saved
+     *
+     * @param sourceEntry the entry the objects are transferred from
+     * @param targetImageData the image data receiving the objects
+     */
+    public void write(ProjectImageEntry sourceEntry, ImageData targetImageData) {
+        targetImageData.setProperty(getPropertyKey(sourceEntry), new Gson().toJson(this));
+    }
+}
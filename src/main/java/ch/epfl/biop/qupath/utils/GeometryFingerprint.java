@@ -0,0 +1,135 @@
+package ch.epfl.biop.qupath.utils;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * 64-bit fingerprints of geometries and PathObjects, used to detect which objects changed between two runs
+ * of a transfer or of an import without comparing geometries vertex by vertex.
+ * <p>
+ * Fingerprints only depend on the exact coordinates (and their order), the object type and its classification,
+ * so they are stable when the hierarchy is saved and reloaded.
+ */
+public class GeometryFingerprint {
+
+    private static final long SEED = 0xcbf29ce484222325L;
+
+    /**
+     * Fingerprint of the coordinates of a JTS geometry, including the way they are split into sequences
+     *
+     * @param geometry the geometry to fingerprint
+     * @return a 64-bit fingerprint, 0 if the geometry is null
+     */
+    public static long of(Geometry geometry) {
+        if (geometry == null) return 0L;
+        final long[] hash = {mix(SEED, geometry.getGeometryType().hashCode())};
+        geometry.apply(new CoordinateSequenceFilter() {
+            @Override
+            public void filter(CoordinateSequence seq, int i) {
+                if (i == 0) hash[0] = mix(hash[0], seq.size());
+                hash[0] = mix(hash[0], Double.doubleToLongBits(seq.getX(i)));
+                hash[0] = mix(hash[0], Double.doubleToLongBits(seq.getY(i)));
+            }
+
+            @Override
+            public boolean isDone() {
+                return false;
+            }
+
+            @Override
+            public boolean isGeometryChanged() {
+                return false;
+            }
+        });
+        return hash[0];
+    }
+
+    /**
+     * Fingerprint of a QuPath ROI, see {@link #of(Geometry)}
+     *
+     * @param roi the roi to fingerprint
+     * @return a 64-bit fingerprint, 0 if the roi is null
+     */
+    public static long of(ROI roi) {
+        if (roi == null) return 0L;
+        long hash = mix(of(roi.getGeometry()), roi.getC());
+        hash = mix(hash, roi.getZ());
+        return mix(hash, roi.getT());
+    }
+
+    /**
+     * Fingerprint of a PathObject: its type, its classification, its ROI and, for cells, its nucleus ROI.
+     * Child objects are not taken into account.
+     *
+     * @param object the object to fingerprint
+     * @return a 64-bit fingerprint
+     */
+    public static long of(PathObject object) {
+        long hash = of(object.getClass().getSimpleName());
+        hash = mix(hash, of(object.getPathClass() == null ? "" : object.getPathClass().toString()));
+        hash = mix(hash, of(object.getROI()));
+        if (object instanceof PathCellObject) {
+            hash = mix(hash, of(((PathCellObject) object).getNucleusROI()));
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint of a String, stable across JVMs
+     *
+     * @param text the text to fingerprint
+     * @return a 64-bit fingerprint
+     */
+    public static long of(String text) {
+        long hash = SEED;
+        for (int i = 0; i < text.length(); i++) {
+            hash = mix(hash, text.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint of a byte array, e.g. the content of a file
+     *
+     * @param bytes the bytes to fingerprint
+     * @return a 64-bit fingerprint
+     */
+    public static long of(byte[] bytes) {
+        long hash = SEED;
+        for (byte b : bytes) {
+            hash = mix(hash, b);
+        }
+        return hash;
+    }
+
+    /**
+     * Combines two fingerprints into one, order matters
+     *
+     * @param first  the first fingerprint
+     * @param second the second fingerprint
+     * @return the combined fingerprint
+     */
+    public static long combine(long first, long second) {
+        return mix(first, second);
+    }
+
+    /**
+     * @param fingerprint a fingerprint
+     * @return its fixed-width hexadecimal representation, used when fingerprints are stored in JSON files
+     */
+    public static String toHex(long fingerprint) {
+        return String.format("%016x", fingerprint);
+    }
+
+    // FNV-like accumulation followed by the splitmix64 finalizer, so that close coordinates give far apart hashes
+    private static long mix(long hash, long value) {
+        long z = (hash ^ value) * 0x100000001b3L + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
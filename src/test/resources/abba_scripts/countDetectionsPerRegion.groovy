@@ -0,0 +1,22 @@
+/**
+ * Counts the detections of each class per brain region, summed through the Allen hierarchy,
+ * once ABBA results have been imported
+ *
+ * Writes one table for the whole project in the 'results' folder of the project,
+ * with an additional 'All images' block summing all the entries
+ */
+
+// Necessary import, requires biop-tools, see: https://github.com/BIOP/qupath-biop-extensions
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasRegionAggregator
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasTools
+
+import static qupath.lib.gui.scripting.QPEx.* // For intellij editor autocompletion
+
+def project = getProject()
+def ontology = AtlasTools.getOntology(project)
+
+def results = AtlasRegionAggregator.aggregateProject(project, ontology, true)
+
+def resultsFolder = buildFilePath(PROJECT_BASE_DIR, 'results')
+mkdirs(resultsFolder)
+results.save(buildFilePath(resultsFolder, 'atlas_region_counts.txt'))
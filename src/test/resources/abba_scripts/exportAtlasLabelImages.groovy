@@ -0,0 +1,25 @@
+/**
+ * Writes one label image of the atlas regions per section of the project, as pyramidal OME-TIFF files,
+ * e.g. to train machine learning models on the registered sections
+ *
+ * Each pixel gets the Allen ID of the deepest region containing it (useAllenIds = true),
+ * or a compact index which also encodes the side for split imports (useAllenIds = false)
+ *
+ * The label images are written in the 'atlas_labels' folder of the project
+ * Run it once, not via "Run for project"
+ */
+
+// Necessary import, requires biop-tools, see: https://github.com/BIOP/qupath-biop-extensions
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasLabelImageServer
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasTools
+
+import static qupath.lib.gui.scripting.QPEx.* // For intellij editor autocompletion
+
+def useAllenIds = true
+double[] downsamples = [1, 4, 16, 64]
+
+def labelsFolder = buildFilePath(PROJECT_BASE_DIR, 'atlas_labels')
+mkdirs(labelsFolder)
+
+def nWritten = AtlasLabelImageServer.exportProject(getProject(), AtlasTools.getOntology(getProject()), new File(labelsFolder), useAllenIds, downsamples)
+print nWritten + " atlas label images written to " + labelsFolder
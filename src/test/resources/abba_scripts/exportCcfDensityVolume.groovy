@@ -0,0 +1,19 @@
+/**
+ * Bins the detections of all the sections of the project into a 3D volume of the Allen CCFv3,
+ * one count per voxel and per detection class, without exporting the detections themselves
+ *
+ * The volume is written as a gzipped NRRD file in the 'results' folder of the project
+ * Run it once, not via "Run for project"
+ */
+
+// Necessary import, requires biop-tools, see: https://github.com/BIOP/qupath-biop-extensions
+import ch.epfl.biop.qupath.atlas.allen.api.CcfDensityVolume
+
+import static qupath.lib.gui.scripting.QPEx.* // For intellij editor autocompletion
+
+def voxelSizeMicrons = 50
+
+def resultsFolder = buildFilePath(PROJECT_BASE_DIR, 'results')
+mkdirs(resultsFolder)
+
+CcfDensityVolume.exportProject(getProject(), voxelSizeMicrons, new File(buildFilePath(resultsFolder, 'ccf_density_'+voxelSizeMicrons+'um.nrrd')))
@@ -1,17 +1,22 @@
 /**
  * Once ABBA results have been imported, you can act on a specific region of the brain
  * by starting your command with this script.
- * 
+ *
+ * Selects the annotations and detections of a region and of all its sub-regions, on one side if regions were split
+ * before import, or on both sides with side = null.
+ * Detections are found either through their "Allen ID" measurement (see AtlasTools.assignDetectionsToAtlasRegions)
+ * or through their parent atlas annotation
  */
 
+// Necessary import, requires biop-tools, see: https://github.com/BIOP/qupath-biop-extensions
+import ch.epfl.biop.qupath.atlas.allen.api.AtlasTools
 
 import static qupath.lib.gui.scripting.QPEx.* // For intellij editor autocompletion
 
-def regionClassPath = "Right: SSp-ul" // for instance, provided regions have been splitted before import
-
-selectObjectsByClassification(regionClassPath);
-
-// What if there are several annotations ?
+def region = "SSp-ul" // acronym or Allen ID of the region
+def side = "Right" // "Left" or "Right", provided regions have been split before import, or null for both sides
 
+def nSelected = AtlasTools.selectObjectsUnderRegion(getCurrentImageData(), region, side)
+print nSelected + " objects selected under " + (side == null ? "" : side + ": ") + region
 
 //TODO : do stuff
@@ -0,0 +1,60 @@
+/**
+ * Regression check of the RNAScope spot counts on the cells of the selected annotation
+ *
+ * The cells are processed as RNAScopeCounts2 does, grouped by tile with one read per group, and again one by one with
+ * one read per cell bounding box, as before tiles were introduced. Both must give the same counts for every cell:
+ * the differences are listed and the script fails if there are any.
+ *
+ * Run it on a fixture image with detected cells, with a channel and threshold set as for the plugin. No object is
+ * modified.
+ */
+
+// Necessary import, requires biop-tools, see: https://github.com/BIOP/qupath-biop-extensions
+import ch.epfl.biop.qupath.analysis.RNAScopeCounts2
+import qupath.lib.objects.PathCellObject
+import qupath.lib.objects.PathObjectTools
+
+import static qupath.lib.gui.scripting.QPEx.* // For intellij editor autocompletion
+
+def channel = "DAB"
+def detectionType = "Dark Spots"
+def threshold = 0.0
+
+def imageData = getCurrentImageData()
+def parent = getSelectedObject()
+if (parent == null) {
+    println "Select the annotation containing the cells to check"
+    return
+}
+
+def plugin = new RNAScopeCounts2()
+def params = plugin.getDefaultParameterList(imageData)
+params.setChoiceParameterValue("channel_to_process", channel)
+params.setChoiceParameterValue("detection_type", detectionType)
+params.setNumericParameterValue("threshold", threshold)
+
+def server = RNAScopeCounts2.getChannelServer(imageData, channel)
+def downsample = Math.round(Math.max(1.0, Math.max(server.getWidth(), server.getHeight()) / 2048.0)) as int
+def minMax = RNAScopeCounts2.percentiles(server, parent.getROI(), downsample, detectionType == "Dark Spots", 5.0, 99.99)
+
+def cells = PathObjectTools.getFlattenedObjectList(parent, null, false).findAll { it instanceof PathCellObject }
+
+// Counts with one read per group of cells
+def grouped = [:]
+RNAScopeCounts2.groupByTile(cells).each { group ->
+    RNAScopeCounts2.detectSpots(group, params, server, minMax).each { grouped[it.cell] = it }
+}
+
+// Counts with one read per cell
+def nDifferent = 0
+cells.each { cell ->
+    def single = RNAScopeCounts2.detectSpots([cell], params, server, minMax)[0]
+    def tiled = grouped[cell]
+    if (single.spots?.size() != tiled.spots?.size() || single.nucleusCounts != tiled.nucleusCounts) {
+        println "${cell}: ${tiled.spots?.size()} spots (${tiled.nucleusCounts} outside of the nucleus) by tile, ${single.spots?.size()} (${single.nucleusCounts}) per cell"
+        nDifferent++
+    }
+}
+
+println "${cells.size()} cells checked, ${nDifferent} with different counts"
+assert nDifferent == 0